@@ -0,0 +1,44 @@
+/* BenchMemory.java - gshare.bench.BenchMemory
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare.bench;
+
+import  gshare.GenericMemory;
+import  hades.simulator.Port;
+
+
+/**
+ * BenchMemory - a port-less GenericMemory of any size, which also
+ * exposes the listener notification for the benchmarks.
+ */
+public class BenchMemory extends GenericMemory {
+
+  public BenchMemory( int n_words, int n_bits ) {
+    this( n_words, n_bits, "array" );
+  }
+
+  public BenchMemory( int n_words, int n_bits, String storage_mode ) {
+    super();
+    this.n_words      = n_words;
+    this.n_bits       = n_bits;
+    this.storage_mode = storage_mode;
+    createMemory();
+    constructStandardValues();
+    initializeWithZeroes();
+  }
+
+  protected void constructPorts() {
+    ports = new Port[0];
+  }
+
+  public void fireWrite( int address, long old_value, long new_value ) {
+    notifyWriteListeners( address, old_value, new_value );
+  }
+
+  public void fireRead( int address, long value ) {
+    notifyReadListeners( address, value );
+  }
+
+}
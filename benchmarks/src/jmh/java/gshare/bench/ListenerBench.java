@@ -0,0 +1,73 @@
+/* ListenerBench.java - gshare.bench.ListenerBench
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare.bench;
+
+import  java.util.concurrent.TimeUnit;
+
+import  hades.models.memory.MemoryListener;
+
+import  org.openjdk.jmh.annotations.*;
+import  org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * ListenerBench - cost of notifyWriteListeners/notifyReadListeners
+ * with 0, 1 and 8 registered MemoryListeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ListenerBench {
+
+  @Param({ "0", "1", "8" })
+  public int listeners;
+
+  private BenchMemory  memory;
+  private int          address;
+
+
+  /**
+   * a listener that does a minimal amount of work per event.
+   */
+  public static class SinkListener implements MemoryListener {
+    private final Blackhole bh;
+
+    public SinkListener( Blackhole bh ) {
+      this.bh = bh;
+    }
+
+    public void memoryRead( int address, long value ) {
+      bh.consume( value );
+    }
+
+    public void memoryWrite( int address, long old_value, long new_value ) {
+      bh.consume( new_value );
+    }
+  }
+
+
+  @Setup
+  public void setup( Blackhole bh ) {
+    memory = new BenchMemory( 256, 18 );
+    for( int i=0; i < listeners; i++ ) {
+      memory.addMemoryListener( new SinkListener( bh ));
+    }
+  }
+
+
+  @Benchmark
+  public void notifyWrite() {
+    address = (address + 1) & 255;
+    memory.fireWrite( address, address, address + 1 );
+  }
+
+  @Benchmark
+  public void notifyRead() {
+    address = (address + 1) & 255;
+    memory.fireRead( address, address );
+  }
+
+}
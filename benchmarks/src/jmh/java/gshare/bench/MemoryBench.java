@@ -0,0 +1,92 @@
+/* MemoryBench.java - gshare.bench.MemoryBench
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare.bench;
+
+import  java.util.Random;
+import  java.util.concurrent.TimeUnit;
+
+import  org.openjdk.jmh.annotations.*;
+
+
+/**
+ * MemoryBench - GenericMemory.getDataAt/setDataAt throughput at several
+ * table sizes and storage backends, with random addresses (the access
+ * pattern of a prediction table) and sequential ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MemoryBench {
+
+  @Param({ "256", "65536", "4194304" })
+  public int size;
+
+  @Param({ "18" })
+  public int bits;
+
+  @Param({ "array", "packed", "concurrent" })
+  public String storage;
+
+  private BenchMemory  memory;
+  private int          addresses[];
+  private int          next;
+
+
+  @Setup
+  public void setup() {
+    memory    = new BenchMemory( size, bits, storage );
+    addresses = new int[ 1 << 16 ];
+    Random random = new Random( 42 );
+    for( int i=0; i < addresses.length; i++ ) {
+      addresses[i] = random.nextInt( size );
+    }
+  }
+
+  private int nextAddress() {
+    int a = addresses[next];
+    next = (next + 1) & (addresses.length - 1);
+    return a;
+  }
+
+
+  @Benchmark
+  public long lookupRandom() {
+    return memory.getDataAt( nextAddress() );
+  }
+
+  @Benchmark
+  public void updateRandom() {
+    int a = nextAddress();
+    memory.setDataAt( a, a ^ 0x2a5a5 );
+  }
+
+  @Benchmark
+  public long readModifyWriteRandom() {
+    int  a = nextAddress();
+    long v = memory.getDataAt( a ) + 1;
+    memory.setDataAt( a, v );
+    return v;
+  }
+
+  @Benchmark
+  public long compareAndSetRandom() {
+    int  a = nextAddress();
+    long o, v;
+    do {
+      o = memory.getDataAt( a );
+      v = o + 1;
+    } while( !memory.compareAndSetDataAt( a, o, v ));
+    return v;
+  }
+
+  @Benchmark
+  public long lookupSequential() {
+    int a = next;
+    next = (next + 1 == size) ? 0 : next + 1;
+    return memory.getDataAt( a );
+  }
+
+}
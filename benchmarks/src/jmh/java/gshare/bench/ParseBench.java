@@ -0,0 +1,69 @@
+/* ParseBench.java - gshare.bench.ParseBench
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare.bench;
+
+import  java.io.BufferedReader;
+import  java.io.ByteArrayInputStream;
+import  java.io.StringReader;
+import  java.util.Random;
+import  java.util.concurrent.TimeUnit;
+
+import  gshare.MemoryImageLoader;
+
+import  org.openjdk.jmh.annotations.*;
+
+
+/**
+ * ParseBench - GenericMemory.parse() and MemoryImageLoader throughput
+ * on memory files in the usual "addr:data" hex format, with comments
+ * and X entries mixed in. One operation parses the whole file of the
+ * given number of lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBench {
+
+  @Param({ "1024", "65536" })
+  public int lines;
+
+  private BenchMemory  memory;
+  private String       text;
+  private byte         bytes[];
+
+
+  @Setup
+  public void setup() {
+    memory = new BenchMemory( lines, 18 );
+
+    StringBuilder sb = new StringBuilder();
+    sb.append( "# generated by ParseBench\n" );
+    Random random = new Random( 42 );
+    for( int i=0; i < lines; i++ ) {
+      if ((i & 255) == 255) sb.append( "; comment line\n" );
+      sb.append( String.format( "%04x:", i ));
+      if ((i & 1023) == 1023) sb.append( "XXXXX" );
+      else                    sb.append( String.format( "%05x", random.nextInt( 1 << 18 )));
+      sb.append( '\n' );
+    }
+    text  = sb.toString();
+    bytes = text.getBytes();
+  }
+
+
+  @Benchmark
+  public boolean parse() throws Exception {
+    return memory.parse( new BufferedReader( new StringReader( text )));
+  }
+
+  @Benchmark
+  public long loadImage() throws Exception {
+    MemoryImageLoader loader = new MemoryImageLoader( memory, "ParseBench" );
+    loader.load( new ByteArrayInputStream( bytes ));
+    return loader.getWordCount();
+  }
+
+}
@@ -0,0 +1,98 @@
+/* PredictorBench.java - gshare.bench.PredictorBench
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare.bench;
+
+import  java.util.Random;
+import  java.util.concurrent.TimeUnit;
+
+import  gshare.gshare;
+
+import  org.openjdk.jmh.annotations.*;
+
+
+/**
+ * PredictorBench - full predict+update cycles of the gshare component,
+ * driven by a synthetic branch stream.
+ * <p>
+ * gshare.evaluate() needs a running Hades kernel with connected signals;
+ * its table lookup and nWE write paths are the ones measured here via
+ * the headless BranchPredictor interface (peekLine, matchLine, writeLine).
+ * <p>
+ * The stream mixes loop branches (taken n-1 out of n times), biased
+ * branches and random ones over a set of static branch addresses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PredictorBench {
+
+  @Param({ "0", "10" })
+  public int history;
+
+  @Param({ "64", "1024" })
+  public int staticBranches;
+
+  private gshare   predictor;
+
+  private long     pcs[], targets[];
+  private boolean  outcomes[];
+  private int      next;
+
+
+  @Setup
+  public void setup() {
+    predictor = new gshare();
+    predictor.resize( 256, predictor.getBitsPerWord() );
+    predictor.setHistoryBits( history );
+
+    Random random = new Random( 42 );
+    long   site_pc[]     = new long[ staticBranches ];
+    long   site_target[] = new long[ staticBranches ];
+    int    site_kind[]   = new int[ staticBranches ];
+    int    site_count[]  = new int[ staticBranches ];
+    for( int i=0; i < staticBranches; i++ ) {
+      site_pc[i]     = 0x00400000L + 4L * random.nextInt( 1 << 14 );
+      site_target[i] = 0x00400000L + 4L * random.nextInt( 1 << 14 );
+      site_kind[i]   = random.nextInt( 3 );
+    }
+
+    int n = 1 << 20;
+    pcs      = new long[n];
+    targets  = new long[n];
+    outcomes = new boolean[n];
+    for( int k=0; k < n; k++ ) {
+      int i = random.nextInt( staticBranches );
+      boolean taken;
+      switch( site_kind[i] ) {
+        case 0:  taken = (++site_count[i] % 8) != 0; break;   // loop
+        case 1:  taken = random.nextInt( 10 ) != 0;    break;   // biased
+        default: taken = random.nextBoolean();         break;   // random
+      }
+      pcs[k]      = site_pc[i];
+      targets[k]  = site_target[i];
+      outcomes[k] = taken;
+    }
+  }
+
+
+  @Benchmark
+  public boolean predictAndUpdate() {
+    int k = next;
+    next = (next + 1) & (pcs.length - 1);
+
+    boolean predicted = predictor.predict( pcs[k] );
+    predictor.update( pcs[k], targets[k], outcomes[k] );
+    return predicted;
+  }
+
+  @Benchmark
+  public boolean predictOnly() {
+    int k = next;
+    next = (next + 1) & (pcs.length - 1);
+    return predictor.predict( pcs[k] );
+  }
+
+}
@@ -0,0 +1,224 @@
+/* BinaryBranchTrace.java - gshare.BinaryBranchTrace
+ *
+ * 17.10.26 - first version
+ * 17.10.26 - version 2, with branch kinds
+ */
+
+package gshare;
+
+import  java.io.*;
+import  java.nio.ByteOrder;
+import  java.nio.MappedByteBuffer;
+import  java.nio.channels.FileChannel;
+
+
+/**
+ * BinaryBranchTrace - streams a binary branch trace through a memory
+ * mapping. The format, written by BinaryBranchTraceWriter, is a 32 byte
+ * header (little endian)
+ * <pre>
+ *   int  MAGIC      0x52544247 ("GBTR")
+ *   int  VERSION    2
+ *   long n_records
+ *   int  block_size records per block
+ *   int  reserved[3]
+ * </pre>
+ * followed by blocks of up to block_size records:
+ * <pre>
+ *   int  n          records in this block
+ *   int  length     bytes of payload
+ *   byte taken[(n+7)/8]  outcome bitmap, record i in bit i%8 of byte i/8
+ *   byte kind[(n+3)/4]   branch kinds, record i in bits 2*(i%4)+1..2*(i%4)
+ *                        of byte i/4 (BranchSource.CONDITIONAL .. INDIRECT)
+ *   n times: varint zigzag(pc - previous pc), varint zigzag(target - pc)
+ * </pre>
+ * The previous pc is 0 at the start of each block, so blocks decode
+ * independently. Varints are LEB128, 7 bits per byte, low bits first.
+ * Version 1 files, without the kind bytes, are read with all branches
+ * CONDITIONAL.
+ * <p>
+ * Each block is copied out of the mapping in one bulk get and decoded
+ * into reused arrays; next() only advances an index.
+ */
+public class BinaryBranchTrace implements BranchSource {
+
+  public final static int   MAGIC       = 0x52544247;
+  public final static int   VERSION     = 2;
+  public final static int   HEADER_SIZE = 32;
+
+  protected final static long  WINDOW   = 1L << 30;
+
+  protected RandomAccessFile   file;
+  protected FileChannel        channel;
+  protected long               file_size;
+  protected MappedByteBuffer   window;
+  protected long               window_start;
+
+  protected int                version;
+  protected long               n_records;
+  protected int                block_size;
+  protected long               offset;        // file offset of the next block
+
+  protected byte               payload[];
+  protected long               pcs[], targets[];
+  protected byte               taken[], kinds[];
+  protected int                n, i;
+
+
+  public BinaryBranchTrace( String filename ) throws IOException {
+    file      = new RandomAccessFile( filename, "r" );
+    channel   = file.getChannel();
+    file_size = channel.size();
+
+    if (file_size < HEADER_SIZE) {
+      close();
+      throw new IOException( filename + ": not a binary branch trace" );
+    }
+    map( 0, HEADER_SIZE );
+    int magic   = window.getInt( 0 );
+    version     = window.getInt( 4 );
+    if (magic != MAGIC || version < 1 || version > VERSION) {
+      close();
+      throw new IOException( filename + ": not a binary branch trace "
+                             + "(version " + VERSION + ")" );
+    }
+    n_records  = window.getLong( 8 );
+    block_size = window.getInt( 16 );
+    offset     = HEADER_SIZE;
+
+    pcs     = new long[block_size];
+    targets = new long[block_size];
+    taken   = new byte[(block_size + 7) / 8];
+    kinds   = new byte[(block_size + 3) / 4];
+    payload = new byte[1 << 16];
+  }
+
+
+  /**
+   * true if filename starts with the binary trace magic.
+   */
+  public static boolean isBinaryTrace( String filename ) {
+    try {
+      DataInputStream in = new DataInputStream( new FileInputStream( filename ));
+      try {
+        return Integer.reverseBytes( in.readInt() ) == MAGIC;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch( IOException e ) {
+      return false;
+    }
+  }
+
+
+  public long getRecordCount() {
+    return n_records;
+  }
+
+
+  public boolean next() throws IOException {
+    if (++i < n) return true;
+    if (!readBlock()) return false;
+    i = 0;
+    return true;
+  }
+
+  public long getPC() {
+    return pcs[i];
+  }
+
+  public long getTarget() {
+    return targets[i];
+  }
+
+  public boolean isTaken() {
+    return ((taken[i >> 3] >> (i & 7)) & 1) != 0;
+  }
+
+  public int getKind() {
+    return (kinds[i >> 2] >> ((i & 3) << 1)) & 3;
+  }
+
+
+  /**
+   * map the window so that it covers [pos, pos+length).
+   */
+  protected void map( long pos, int length ) throws IOException {
+    if (window != null && pos >= window_start
+        && pos + length <= window_start + window.limit()) return;
+    long size = Math.min( file_size - pos, WINDOW );
+    if (size < length) throw new EOFException( "truncated binary trace" );
+    window       = channel.map( FileChannel.MapMode.READ_ONLY, pos, size );
+    window.order( ByteOrder.LITTLE_ENDIAN );
+    window_start = pos;
+  }
+
+
+  protected boolean readBlock() throws IOException {
+    n = 0;
+    if (offset + 8 > file_size) return false;
+
+    map( offset, 8 );
+    int p      = (int) (offset - window_start);
+    int count  = window.getInt( p );
+    int length = window.getInt( p + 4 );
+    if (count <= 0 || count > block_size || length < 0) {
+      throw new IOException( "corrupt binary trace block at " + offset );
+    }
+
+    map( offset + 8, length );
+    if (payload.length < length) payload = new byte[length];
+    window.position( (int) (offset + 8 - window_start) );
+    window.get( payload, 0, length );
+    offset += 8 + length;
+
+    decode( payload, count );
+    n = count;
+    return true;
+  }
+
+
+  protected void decode( byte b[], int count ) {
+    int  nbitmap = (count + 7) / 8;
+    System.arraycopy( b, 0, taken, 0, nbitmap );
+
+    int  p  = nbitmap;
+    if (version >= 2) {
+      int nkinds = (count + 3) / 4;
+      System.arraycopy( b, p, kinds, 0, nkinds );
+      p += nkinds;
+    }
+    long pc = 0;
+    for( int k=0; k < count; k++ ) {
+      long v = 0;
+      int  s = 0;
+      byte x;
+      do {
+        x  = b[p++];
+        v |= (long) (x & 0x7f) << s;
+        s += 7;
+      } while( x < 0 );
+      pc += (v >>> 1) ^ -(v & 1);
+      pcs[k] = pc;
+
+      v = 0;
+      s = 0;
+      do {
+        x  = b[p++];
+        v |= (long) (x & 0x7f) << s;
+        s += 7;
+      } while( x < 0 );
+      targets[k] = pc + ((v >>> 1) ^ -(v & 1));
+    }
+  }
+
+
+  public void close() throws IOException {
+    window = null;
+    if (file != null) file.close();
+    file = null;
+  }
+
+}
@@ -0,0 +1,186 @@
+/* BinaryBranchTraceWriter.java - gshare.BinaryBranchTraceWriter
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+
+
+/**
+ * BinaryBranchTraceWriter - writes branch records in the binary trace
+ * format of BinaryBranchTrace. The main() converts a hex text trace.
+ * <p>
+ * Usage: <code>java gshare.BinaryBranchTraceWriter [-block n] in.txt out.gbt</code>
+ */
+public class BinaryBranchTraceWriter {
+
+  public final static int  DEFAULT_BLOCK_SIZE = 4096;
+
+  protected RandomAccessFile  file;
+  protected int               block_size;
+  protected long              n_records;
+
+  protected long              pcs[], targets[];
+  protected byte              taken[], kinds[];
+  protected int               n;
+  protected byte              buffer[];
+
+
+  public BinaryBranchTraceWriter( String filename ) throws IOException {
+    this( filename, DEFAULT_BLOCK_SIZE );
+  }
+
+  public BinaryBranchTraceWriter( String filename, int block_size )
+         throws IOException
+  {
+    this.block_size = block_size;
+    pcs     = new long[block_size];
+    targets = new long[block_size];
+    taken   = new byte[(block_size + 7) / 8];
+    kinds   = new byte[(block_size + 3) / 4];
+    buffer  = new byte[8 + taken.length + kinds.length + 20 * block_size];
+
+    file = new RandomAccessFile( filename, "rw" );
+    file.setLength( 0 );
+    writeHeader();
+  }
+
+
+  public void add( long pc, long target, boolean is_taken ) throws IOException {
+    add( pc, target, is_taken, BranchSource.CONDITIONAL );
+  }
+
+  /**
+   * add a record with the branch kind, BranchSource.CONDITIONAL .. INDIRECT.
+   */
+  public void add( long pc, long target, boolean is_taken, int kind )
+         throws IOException
+  {
+    pcs[n]     = pc;
+    targets[n] = target;
+    if (is_taken) taken[n >> 3] |=  (byte) (1 << (n & 7));
+    else          taken[n >> 3] &= ~(byte) (1 << (n & 7));
+    int s = (n & 3) << 1;
+    kinds[n >> 2] = (byte) ((kinds[n >> 2] & ~(3 << s)) | ((kind & 3) << s));
+    n++;
+    n_records++;
+    if (n == block_size) flushBlock();
+  }
+
+
+  /**
+   * append all records of source.
+   */
+  public void write( BranchSource source ) throws IOException {
+    while( source.next() ) {
+      add( source.getPC(), source.getTarget(), source.isTaken(),
+           source.getKind() );
+    }
+  }
+
+
+  public long getRecordCount() {
+    return n_records;
+  }
+
+
+  protected void writeHeader() throws IOException {
+    byte h[] = new byte[BinaryBranchTrace.HEADER_SIZE];
+    putInt( h, 0, BinaryBranchTrace.MAGIC );
+    putInt( h, 4, BinaryBranchTrace.VERSION );
+    putInt( h, 8, (int) n_records );
+    putInt( h, 12, (int) (n_records >>> 32) );
+    putInt( h, 16, block_size );
+    file.seek( 0 );
+    file.write( h );
+  }
+
+
+  protected void flushBlock() throws IOException {
+    if (n == 0) return;
+    byte b[]     = buffer;
+    int  nbitmap = (n + 7) / 8;
+    int  nkinds  = (n + 3) / 4;
+    System.arraycopy( taken, 0, b, 8, nbitmap );
+    System.arraycopy( kinds, 0, b, 8 + nbitmap, nkinds );
+
+    int  p    = 8 + nbitmap + nkinds;
+    long prev = 0;
+    for( int k=0; k < n; k++ ) {
+      p    = putVarint( b, p, pcs[k] - prev );
+      p    = putVarint( b, p, targets[k] - pcs[k] );
+      prev = pcs[k];
+    }
+    putInt( b, 0, n );
+    putInt( b, 4, p - 8 );
+    file.write( b, 0, p );
+    n = 0;
+  }
+
+
+  /**
+   * zigzag-encode v and write it as LEB128 varint at b[p].
+   */
+  protected static int putVarint( byte b[], int p, long v ) {
+    long z = (v << 1) ^ (v >> 63);
+    while( (z & ~0x7fL) != 0 ) {
+      b[p++] = (byte) ((z & 0x7f) | 0x80);
+      z >>>= 7;
+    }
+    b[p++] = (byte) z;
+    return p;
+  }
+
+  protected static void putInt( byte b[], int p, int v ) {
+    b[p]   = (byte)  v;
+    b[p+1] = (byte) (v >>> 8);
+    b[p+2] = (byte) (v >>> 16);
+    b[p+3] = (byte) (v >>> 24);
+  }
+
+
+  /**
+   * write the last block and the record count, and close the file.
+   */
+  public void close() throws IOException {
+    flushBlock();
+    writeHeader();
+    file.close();
+  }
+
+
+  public static void main( String argv[] ) throws Exception {
+    int block_size = DEFAULT_BLOCK_SIZE;
+    int i = 0;
+    if (argv.length > 1 && argv[0].equals( "-block" )) {
+      block_size = Integer.parseInt( argv[1] );
+      i = 2;
+    }
+    if (argv.length != i+2) {
+      System.err.println( "Usage: java gshare.BinaryBranchTraceWriter "
+                          + "[-block n] in.txt out.gbt" );
+      System.exit( 1 );
+    }
+
+    long start = System.nanoTime();
+    TextBranchTrace         in  = new TextBranchTrace( argv[i] );
+    BinaryBranchTraceWriter out = new BinaryBranchTraceWriter( argv[i+1], block_size );
+    try {
+      out.write( in );
+    }
+    finally {
+      in.close();
+      out.close();
+    }
+    long in_size  = new File( argv[i] ).length();
+    long out_size = new File( argv[i+1] ).length();
+    System.err.println( "-I- " + out.getRecordCount() + " records, "
+                        + in_size + " -> " + out_size + " bytes ("
+                        + String.format( "%.1f bytes/record, %.2f s",
+                            (double) out_size / Math.max( 1, out.getRecordCount() ),
+                            (System.nanoTime() - start) * 1.0E-9 ) + ")" );
+  }
+
+}
@@ -0,0 +1,44 @@
+/* BranchPredictor.java - gshare.BranchPredictor
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+
+/**
+ * BranchPredictor - the headless view of a prediction table, used by
+ * TraceEngine to drive a predictor straight from a branch trace,
+ * without a Hades simulator, ports and SimEvents.
+ * <p>
+ * For every branch, predict() is called first and update() afterwards,
+ * once the outcome is known. All addresses are byte addresses.
+ * With several branches in flight, the updates come in predict order,
+ * and a mispredicted update is followed by squash() and new predictions
+ * for all younger branches.
+ */
+public interface BranchPredictor {
+
+  /**
+   * return true if the branch at pc is predicted taken.
+   * The predicted target is available via getPredictedTarget() afterwards.
+   */
+  public boolean predict( long pc );
+
+  /**
+   * return the target predicted by the last call of predict().
+   */
+  public long getPredictedTarget();
+
+  /**
+   * train the predictor with the resolved outcome of the branch at pc.
+   */
+  public void update( long pc, long target, boolean taken );
+
+  /**
+   * discard the speculative state of all branches predicted but not
+   * yet updated, as after a pipeline flush.
+   */
+  public void squash();
+
+}
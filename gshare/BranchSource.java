@@ -0,0 +1,46 @@
+/* BranchSource.java - gshare.BranchSource
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.IOException;
+
+
+/**
+ * BranchSource - a stream of branch records (pc, target, taken, kind).
+ * <p>
+ * The record fields are read via the getters after next() returned true;
+ * implementations reuse their state, so that no objects are created
+ * per record.
+ */
+public interface BranchSource {
+
+  /* branch kinds, see getKind() */
+  public final static int  CONDITIONAL = 0;  // and other direct branches
+  public final static int  CALL        = 1;
+  public final static int  RETURN      = 2;
+  public final static int  INDIRECT    = 3;  // indirect jumps
+
+
+  /**
+   * advance to the next record, return false at the end of the trace.
+   */
+  public boolean next() throws IOException;
+
+  public long getPC();
+
+  public long getTarget();
+
+  public boolean isTaken();
+
+  /**
+   * CONDITIONAL, CALL, RETURN or INDIRECT; CONDITIONAL for traces
+   * without kinds.
+   */
+  public int getKind();
+
+  public void close() throws IOException;
+
+}
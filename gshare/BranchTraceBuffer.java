@@ -0,0 +1,147 @@
+/* BranchTraceBuffer.java - gshare.BranchTraceBuffer
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.IOException;
+
+
+/**
+ * BranchTraceBuffer - a branch trace held in memory as primitive arrays
+ * (pc, target, kind, and a taken bitmap), read once and then replayed any
+ * number of times. The buffer is not modified after load(), so any
+ * number of threads can replay it concurrently, each through its own
+ * cursor().
+ */
+public class BranchTraceBuffer {
+
+  protected long  pcs[], targets[], taken[];
+  protected byte  kinds[];
+  protected int   n_branches;
+  protected long  n_instructions;
+
+
+  public BranchTraceBuffer() {
+    pcs     = new long[1024];
+    targets = new long[1024];
+    taken   = new long[1024 / 64];
+    kinds   = new byte[1024];
+  }
+
+
+  /**
+   * read a trace file into a new buffer.
+   */
+  public static BranchTraceBuffer load( String filename ) throws IOException {
+    BranchTraceBuffer buffer = new BranchTraceBuffer();
+    BranchSource      source = TraceEngine.openTrace( filename );
+    try {
+      buffer.load( source );
+    }
+    finally {
+      source.close();
+    }
+    return buffer;
+  }
+
+
+  /**
+   * append all records of source.
+   */
+  public void load( BranchSource source ) throws IOException {
+    while( source.next() ) {
+      add( source.getPC(), source.getTarget(), source.isTaken(),
+           source.getKind() );
+    }
+  }
+
+
+  public void add( long pc, long target, boolean is_taken ) {
+    add( pc, target, is_taken, BranchSource.CONDITIONAL );
+  }
+
+  public void add( long pc, long target, boolean is_taken, int kind ) {
+    int n = n_branches;
+    if (n == pcs.length) {
+      int capacity = 2 * n;
+      pcs     = java.util.Arrays.copyOf( pcs, capacity );
+      targets = java.util.Arrays.copyOf( targets, capacity );
+      taken   = java.util.Arrays.copyOf( taken, capacity / 64 );
+      kinds   = java.util.Arrays.copyOf( kinds, capacity );
+    }
+
+    // instructions since the previous branch: from its successor to pc
+    if (n > 0) {
+      long next = isTaken( n-1 ) ? targets[n-1] : pcs[n-1] + 4;
+      long gap  = (pc - next) >> 2;
+      if (gap >= 0 && gap < (1 << 16)) n_instructions += gap;
+    }
+    n_instructions++;
+
+    pcs[n]     = pc;
+    targets[n] = target;
+    kinds[n]   = (byte) kind;
+    if (is_taken) taken[n >> 6] |= 1L << (n & 63);
+    n_branches = n + 1;
+  }
+
+
+  public int size() {
+    return n_branches;
+  }
+
+  public long getPC( int i ) {
+    return pcs[i];
+  }
+
+  public long getTarget( int i ) {
+    return targets[i];
+  }
+
+  public boolean isTaken( int i ) {
+    return ((taken[i >> 6] >>> (i & 63)) & 1) != 0;
+  }
+
+  public int getKind( int i ) {
+    return kinds[i];
+  }
+
+
+  /**
+   * the number of instructions the trace covers, estimated from the
+   * distance between each branch successor and the next branch.
+   * Gaps that are negative or larger than 64K instructions are
+   * taken as trace discontinuities and not counted.
+   */
+  public long getInstructionCount() {
+    return n_instructions;
+  }
+
+
+  /**
+   * return a new BranchSource that replays the buffer from the start.
+   */
+  public BranchSource cursor() {
+    return new Cursor();
+  }
+
+
+  protected class Cursor implements BranchSource {
+    protected int  i = -1;
+
+    public boolean next() {
+      if (i+1 >= n_branches) return false;
+      i++;
+      return true;
+    }
+
+    public long getPC()       { return pcs[i]; }
+    public long getTarget()   { return targets[i]; }
+    public boolean isTaken()  { return BranchTraceBuffer.this.isTaken( i ); }
+    public int getKind()      { return kinds[i]; }
+    public void close()       { }
+  }
+
+}
@@ -0,0 +1,82 @@
+/* ConcurrentStorage.java - gshare.ConcurrentStorage
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.lang.invoke.MethodHandles;
+import  java.lang.invoke.VarHandle;
+
+
+/**
+ * ConcurrentStorage - one long per word, like the plain data[] array,
+ * but accessed through a VarHandle, so that one simulation thread can
+ * write while other threads (analysis, the memory editor) read the
+ * words live, without locks.
+ * <p>
+ * get() is an acquire read and set() a release write, so a reader
+ * that sees a word also sees everything the writer did before it.
+ * compareAndSet() is atomic, for read-modify-write updates that must
+ * not lose a concurrent write; see GenericMemory.compareAndSetDataAt().
+ * The bulk operations are word by word, and not atomic as a whole.
+ */
+public class ConcurrentStorage implements WordStorage {
+
+  protected final static VarHandle  WORDS =
+    MethodHandles.arrayElementVarHandle( long[].class );
+
+  protected final long  words[];
+
+
+  public ConcurrentStorage( int n_words ) {
+    words = new long[n_words];
+  }
+
+
+  public int size() {
+    return words.length;
+  }
+
+
+  public long get( int address ) {
+    return (long) WORDS.getAcquire( words, address );
+  }
+
+  public void set( int address, long value ) {
+    WORDS.setRelease( words, address, value );
+  }
+
+  /**
+   * atomically set the word at address to update, if it is expect.
+   */
+  public boolean compareAndSet( int address, long expect, long update ) {
+    return WORDS.compareAndSet( words, address, expect, update );
+  }
+
+
+  public void fill( long value ) {
+    for( int i=0; i < words.length; i++ ) {
+      WORDS.setRelease( words, i, value );
+    }
+  }
+
+
+  public void getWords( int address, long dst[], int offset, int length ) {
+    for( int i=0; i < length; i++ ) {
+      dst[offset+i] = (long) WORDS.getAcquire( words, address+i );
+    }
+  }
+
+
+  public void setWords( int address, long src[], int offset, int length ) {
+    for( int i=0; i < length; i++ ) {
+      WORDS.setRelease( words, address+i, src[offset+i] );
+    }
+  }
+
+
+  public void close() {
+  }
+
+}
@@ -0,0 +1,93 @@
+/* CopyOnWriteStorage.java - gshare.CopyOnWriteStorage
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.util.Arrays;
+
+
+/**
+ * CopyOnWriteStorage - a SparseStorage that starts with the pages of a
+ * shared, immutable image from the MemoryImageCache. The pages of the
+ * image are referenced, not copied; the first write to such a page
+ * copies it, so that the image and the other memories using it never
+ * see the write. Writes of the value a shared word already has do not
+ * copy the page.
+ */
+public class CopyOnWriteStorage extends SparseStorage {
+
+  protected SparseStorage  image;
+  protected boolean        shared[];   // pages[p] is still that of image
+  protected int            n_copied;
+
+
+  public CopyOnWriteStorage( SparseStorage image ) {
+    super( image.size() );
+    this.image    = image;
+    default_value = image.getDefaultValue();
+    shared        = new boolean[pages.length];
+    for( int p=0; p < pages.length; p++ ) {
+      if (image.pages[p] != null) {
+        pages[p]  = image.pages[p];
+        shared[p] = true;
+        n_allocated++;
+      }
+    }
+  }
+
+
+  public void set( int address, long value ) {
+    int p = address >>> PAGE_BITS;
+    if (shared[p]) {
+      if (pages[p][address & PAGE_MASK] == value) return;
+      unshare( p );
+    }
+    super.set( address, value );
+  }
+
+
+  public void setWords( int address, long src[], int offset, int length ) {
+    if (length <= 0) return;
+    int last = (address + length - 1) >>> PAGE_BITS;
+    for( int p = address >>> PAGE_BITS; p <= last; p++ ) {
+      if (shared[p]) unshare( p );
+    }
+    super.setWords( address, src, offset, length );
+  }
+
+
+  public void fill( long value ) {
+    super.fill( value );
+    Arrays.fill( shared, false );
+  }
+
+
+  protected void unshare( int p ) {
+    pages[p]  = pages[p].clone();
+    shared[p] = false;
+    n_copied++;
+  }
+
+
+  public SparseStorage getImage() {
+    return image;
+  }
+
+  /**
+   * the number of pages still shared with the image.
+   */
+  public int getSharedPages() {
+    int n = 0;
+    for( int p=0; p < shared.length; p++ ) {
+      if (shared[p]) n++;
+    }
+    return n;
+  }
+
+  public int getCopiedPages() {
+    return n_copied;
+  }
+
+}
@@ -0,0 +1,132 @@
+/* CounterTable.java - gshare.CounterTable
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  hades.simulator.Port;
+
+
+/**
+ * CounterTable - a table of n-bit saturating counters, as used for the
+ * pattern history table of the gshare predictor. The counters are kept
+ * in the words of a GenericMemory, so that they can be inspected and
+ * edited with the memory editor.
+ * <p>
+ * With 2-bit counters, this is the FSM of verilog/preditor_gshare.v:
+ * 0 = fortemente_nao_tomado, 1 = nao_tomado, 2 = tomado,
+ * 3 = fortemente_tomado; a branch is predicted taken when the upper
+ * counter bit is set.
+ * <p>
+ * CounterTable has no ports, it is used as a building block of other
+ * predictor components.
+ */
+public class CounterTable extends GenericMemory {
+
+  protected int   index_bits;
+  protected long  index_mask;
+  protected long  max_count, threshold, initial_count;
+
+
+  public CounterTable() {
+    this( 10, 2 );
+  }
+
+  public CounterTable( int index_bits, int counter_bits ) {
+    super();
+    setGeometry( index_bits, counter_bits );
+  }
+
+
+  protected void constructPorts() {
+    ports = new Port[0];
+  }
+
+
+  public boolean canChangeSize() {
+    return true;
+  }
+
+  public void setSize( int n_words ) {
+    resize( n_words, getBitsPerWord() );
+  }
+
+  public void setBitsPerWord( int n_bits ) {
+    resize( getSize(), n_bits );
+  }
+
+  public boolean resize( int n_words, int n_bits ) {
+    this.n_words = n_words;
+    this.n_bits  = n_bits;
+
+    createMemory();
+    constructStandardValues();
+
+    max_count     = bit_mask;
+    threshold     = 1L << (n_bits-1);
+    initial_count = threshold;
+    initializeWithDefaultValues();
+    return true;
+  }
+
+
+  /**
+   * resize to 2^index_bits counters of counter_bits each.
+   */
+  public void setGeometry( int index_bits, int counter_bits ) {
+    this.index_bits = index_bits;
+    this.index_mask = (1L << index_bits) - 1;
+    resize( 1 << index_bits, counter_bits );
+  }
+
+  public int getIndexBits() {
+    return index_bits;
+  }
+
+  public long getIndexMask() {
+    return index_mask;
+  }
+
+
+  /**
+   * all counters start weakly taken (tomado), like after the reset
+   * of preditor_gshare.v.
+   */
+  public void initializeWithDefaultValues() {
+    fillWords( initial_count );
+  }
+
+  public void setInitialCount( long count ) {
+    initial_count = count & bit_mask;
+  }
+
+
+  public long getCounter( int index ) {
+    return getDataAt( index );
+  }
+
+  public boolean isTaken( int index ) {
+    return getDataAt( index ) >= threshold;
+  }
+
+
+  /**
+   * count up on a taken branch and down otherwise, saturating at
+   * 0 and 2^n_bits-1. The counter is written with compareAndSetDataAt(),
+   * so that a concurrent write is not lost.
+   */
+  public void train( int index, boolean taken ) {
+    long old_c, new_c;
+    do {
+      old_c = getDataAt( index );
+      new_c = old_c;
+      if (taken) { if (old_c < max_count) new_c = old_c + 1; }
+      else       { if (old_c > 0)         new_c = old_c - 1; }
+      if (new_c == old_c) return;
+    } while( !compareAndSetDataAt( index, old_c, new_c ));
+
+    notifyWriteListeners( index, old_c, new_c );
+  }
+
+}
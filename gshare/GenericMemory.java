@@ -1,5 +1,17 @@
 /* GenericMemory.java - hades.models.rtl.GenericMemory
  *
+ * 17.10.26 - dispose(), for sub-tables replaced or deleted
+ * 17.10.26 - share images only in storage mode "sparse"
+ * 17.10.26 - stop the ListenerBatcher thread in deleteSimObject()
+ * 17.10.26 - optional shared copy-on-write images (setSharedImages)
+ * 17.10.26 - dirty page tracking, delta snapshots (saveDeltaSnapshot)
+ * 17.10.26 - sparse storage for large, mostly empty memories
+ * 17.10.26 - concurrent storage, compareAndSetDataAt, lock-free listeners
+ * 17.10.26 - optional batched listener notification (ListenerBatcher)
+ * 17.10.26 - added mapped storage, key=value options in initialize()
+ * 17.10.26 - added WordStorage backends (setStorageMode), packed storage
+ * 17.10.26 - added binary snapshots (saveSnapshot, restoreSnapshot)
+ * 17.10.26 - parseRAM() uses the byte-level MemoryImageLoader
  * 09.07.03 - support InstructionDecoder
  * 20.09.01 - use DesignManager.getInputStream
  * 20.08.01 - use NameMangler, added needs/getExternalResources
@@ -30,6 +42,8 @@ import  jfig.utils.SetupManager;
 
 import  java.awt.*;       // needed for config dialog
 import  java.io.*;
+import  java.lang.invoke.MethodHandles;
+import  java.lang.invoke.VarHandle;
 import  java.util.Hashtable;
 import  java.util.Enumeration;
 
@@ -39,6 +53,28 @@ import  java.util.Enumeration;
  *
  * Currently, the word size of the memory is limited to 63 bits.
  * <p>
+ * By default, the words are kept in the <code>long data[]</code> array.
+ * setStorageMode() (or the Hades.GenericMemory.Storage property) selects
+ * another WordStorage backend instead, e.g. "packed" for n_bits wide
+ * packed words, "mapped" for an off-heap memory-mapped file,
+ * "concurrent" for words that other threads read while the simulation
+ * writes them, or "sparse" for large address spaces with few words
+ * used, where only the written pages are allocated. Use getDataAt and
+ * setDataAt to access the words, since data is null for those backends.
+ * <p>
+ * With setSharedImages() (or the Hades.GenericMemory.SharedImages
+ * property), "sparse" memories initialized from the same file share
+ * one parsed image from the MemoryImageCache, and copy a page of it
+ * only when they write to the page.
+ * <p>
+ * Every write marks its page of DIRTY_PAGE_WORDS words in a bitset of
+ * dirty pages, which MemorySnapshot uses to write incremental
+ * checkpoints: saveSnapshot() writes a full image and clears the bits,
+ * saveDeltaSnapshot() writes only the pages changed since then.
+ * <p>
+ * Memory listeners are kept in a copy-on-write array, so adding and
+ * removing them never blocks the notification of other listeners.
+ * <p>
  *
  * @author  F.N.Hendrich
  */
@@ -52,6 +88,9 @@ public class  GenericMemory
 
   protected int    n_words, n_bits;
   protected long   data[];
+  protected WordStorage  storage;    // used instead of data, if not null
+  protected String       storage_mode;
+  protected String       mapped_file;  // for storage_mode "mapped"
   protected long   bit_mask;
 
   protected long   last_read_data, last_write_data;
@@ -61,25 +100,56 @@ public class  GenericMemory
                                 vector_000, vector_111;
 
   protected boolean  enableAnimationFlag = true;
+  protected boolean  share_images;
+
+  protected MemoryImageLoader  last_load;
+
+  /* one bit per page of DIRTY_PAGE_WORDS words, set on every write */
+  protected long   dirty_pages[];
+
+  /* checksum of the last base MemorySnapshot (-1: none), and the
+     number of deltas written or restored on top of it */
+  protected long   snapshot_base = -1;
+  protected int    snapshot_sequence;
 
 
   public final static int  UNDEFINED  = -1;
   public final static int  TRISTATED  = -2;
 
+  public final static int  DIRTY_PAGE_BITS  = SparseStorage.PAGE_BITS;
+  public final static int  DIRTY_PAGE_WORDS = 1 << DIRTY_PAGE_BITS;
+
 
 
   private   Hashtable        _listenerTable;  // the old variant
-  private   MemoryListener   _listenerArray[];  
-  private   int              _listenerCount;
+  private volatile MemoryListener  _listenerArray[] = NO_LISTENERS;
+
+  private final static MemoryListener  NO_LISTENERS[] = new MemoryListener[0];
+  private final static VarHandle       LISTENERS;
+  private final static VarHandle       DIRTY =
+    MethodHandles.arrayElementVarHandle( long[].class );
+  static {
+    try {
+      LISTENERS = MethodHandles.lookup().findVarHandle(
+        GenericMemory.class, "_listenerArray", MemoryListener[].class );
+    }
+    catch( ReflectiveOperationException e ) {
+      throw new ExceptionInInitializerError( e );
+    }
+  }
 
   private   InstructionDecoder  _decoder;
 
+  protected ListenerBatcher     batcher;   // null: notify synchronously
+
 
 
   public GenericMemory() {
     super();
     n_bits  = 18; 
     n_words = 18;
+    storage_mode = SetupManager.getProperty( "Hades.GenericMemory.Storage",
+                                             "array" );
 
     constructStandardValues();
     createMemory();
@@ -87,6 +157,10 @@ public class  GenericMemory
 
     enableAnimationFlag = SetupManager.getBoolean(
                             "Hades.LayerTable.RtlibAnimation", false );
+    setListenerBatchInterval( SetupManager.getInteger(
+                            "Hades.GenericMemory.ListenerBatchInterval", -1 ));
+    share_images = SetupManager.getBoolean(
+                            "Hades.GenericMemory.SharedImages", false );
   }
 
 
@@ -172,22 +246,116 @@ public class  GenericMemory
 
 
   public void createMemory() {
-    data = new long[n_words];
+    if (storage != null) storage.close();
+    storage = createStorage();
+    data    = (storage == null) ? new long[n_words] : null;
+    dirty_pages = new long[ (getPageCount() + 63) >>> 6 ];
+
+    if (batcher != null) {   // resize the batches
+      setListenerBatchInterval( batcher.interval );
+    }
+  }
+
+
+  /**
+   * return the WordStorage for the current storage_mode,
+   * or null for the plain data[] array.
+   */
+  protected WordStorage createStorage() {
+    if ("packed".equals( storage_mode )) {
+      return new PackedStorage( n_words, n_bits );
+    }
+    if ("concurrent".equals( storage_mode )) {
+      return new ConcurrentStorage( n_words );
+    }
+    if ("sparse".equals( storage_mode )) {
+      return new SparseStorage( n_words );
+    }
+    if ("mapped".equals( storage_mode )) {
+      try {
+        return new MappedStorage( n_words, n_bits, mapped_file );
+      }
+      catch( IOException e ) {
+        message( "-E- " + toString() + ": cannot map " + mapped_file
+                 + ", using the heap: " + e );
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * select the storage backend: "array" (the default), "packed",
+   * "mapped", "concurrent" or "sparse". The current contents are copied to the
+   * new backend.
+   */
+  public void setStorageMode( String mode ) {
+    if (mode.equals( storage_mode )) return;
+
+    long old[] = getDataArray();
+    storage_mode = mode;
+    createMemory();
+    setDataArray( old );
+  }
+
+  public String getStorageMode() {
+    return storage_mode;
+  }
+
+  /**
+   * set the file for storage mode "mapped". With a file, the memory
+   * contents persist across runs; without, a temporary file is used.
+   * Takes effect with the next createMemory().
+   */
+  public void setMappedFile( String filename ) {
+    mapped_file = filename;
+  }
+
+  public String getMappedFile() {
+    return mapped_file;
+  }
+
+  /**
+   * true if the storage holds the contents of a previous run,
+   * which should not be initialized again.
+   */
+  protected boolean storageIsReopened() {
+    return (storage instanceof MappedStorage)
+        && ((MappedStorage) storage).isReopened();
+  }
+
+  public WordStorage getStorage() {
+    return storage;
   }
 
  
   public boolean dataAtAddressIsUndefined( int addr ) {
-    if (data == null) createMemory();
-    if (addr < 0 || addr >= data.length) return true;
-    else                                 return (data[addr] == UNDEFINED);
+    if (data == null && storage == null) createMemory();
+    if (addr < 0 || addr >= getSize()) return true;
+    else if (storage != null)          return (storage.get( addr ) == UNDEFINED);
+    else                               return (data[addr] == UNDEFINED);
   }
 
 
-  public void initializeWithZeroes() {
-    if (data == null) createMemory();
-    for( int i=0; i < n_words; i++ ) {
-      data[i] = 0;
+  /**
+   * set all words to value.
+   */
+  protected void fillWords( long value ) {
+    if (data == null && storage == null) createMemory();
+    if (storage != null) {
+      storage.fill( value );
     }
+    else {
+      for( int i=0; i < n_words; i++ ) {
+        data[i] = value;
+      }
+    }
+    markAllDirty();
+  }
+
+
+  public void initializeWithZeroes() {
+    fillWords( 0 );
   }
 
   public void initializeWithDefaultValues() {
@@ -195,18 +363,17 @@ public class  GenericMemory
   }
 
   public void initializeWithX() {
-    if (data == null) createMemory();
-    for( int i=0; i < n_words; i++ ) {
-      data[i] = UNDEFINED;
-    }
+    fillWords( UNDEFINED );
   }
 
   public void initializeWithRandomValues() {
-    if (data == null) createMemory();
+    if (data == null && storage == null) createMemory();
     for( int i=0; i < n_words; i++ ) {
-      
-      data[i] = Double.doubleToLongBits(Math.random()) & bit_mask;
+      long value = Double.doubleToLongBits(Math.random()) & bit_mask;
+      if (storage != null) storage.set( i, value );
+      else                 data[i] = value;
     }
+    markAllDirty();
     dbg( "-I- initializeWithRandomValues ok." );
   }
 
@@ -234,13 +401,29 @@ public class  GenericMemory
       n_words      = Integer.parseInt( st.nextToken() );
       n_bits       = Integer.parseInt( st.nextToken() );
 
+      String resource = null;
+      for( int i=3; i < n_tokens; i++ ) {
+        String token = st.nextToken();
+        int    eq    = token.indexOf( '=' );
+        if (eq > 0 && setOption( token.substring( 0, eq ),
+                        NameMangler.decodeUnicodeEscapes( token.substring( eq+1 )))) {
+          continue;
+        }
+        resource = token;
+      }
+
       createMemory();
       constructStandardValues();
       constructPorts();
 
-      if (n_tokens > 3) {
-        resourcename = NameMangler.decodeUnicodeEscapes(st.nextToken());
-        parseRAM( resourcename ); 
+      if (resource != null) {
+        resourcename = NameMangler.decodeUnicodeEscapes(resource);
+      }
+      if (storageIsReopened()) {
+        // keep the contents of the previous run
+      }
+      else if (resource != null) {
+        loadImage( resourcename );
       }
       else {
         initializeWithX();
@@ -255,10 +438,47 @@ public class  GenericMemory
   }
 
 
+  /**
+   * handle a key=value token of initialize(), and return false for
+   * unknown keys. Supported are
+   * storage=array|packed|mapped|concurrent|sparse and file=name for
+   * the mapped file.
+   */
+  protected boolean setOption( String key, String value ) {
+    if (key.equals( "storage" )) {
+      storage_mode = value;
+      return true;
+    }
+    if (key.equals( "file" )) {
+      mapped_file = value;
+      return true;
+    }
+    return false;
+  }
+
+
+  /**
+   * return the key=value tokens for write(), each preceded by a blank.
+   */
+  protected String getOptions() {
+    String s = "";
+    String default_mode = SetupManager.getProperty(
+                            "Hades.GenericMemory.Storage", "array" );
+    if (!default_mode.equals( storage_mode )) {
+      s = s + " storage=" + storage_mode;
+    }
+    if (mapped_file != null) {
+      s = s + " file=" + NameMangler.encodeWithUnicodeEscapes(mapped_file);
+    }
+    return s;
+  }
+
+
   public void write( java.io.PrintWriter ps ) {
     String s =  " " + versionId 
               + " " + n_words 
-              + " " + n_bits;
+              + " " + n_bits
+              + getOptions();
     if (resourcename != null) {
         s = s + " " + NameMangler.encodeWithUnicodeEscapes(resourcename);
     }
@@ -268,7 +488,7 @@ public class  GenericMemory
 
 
   public int getSize() { 
-    return data.length;
+    return (storage != null) ? storage.size() : data.length;
   }
 
   public void setSize( int n_words ) throws Exception {
@@ -284,7 +504,7 @@ public class  GenericMemory
   }
 
   public void setDataAt( int address, long value ) {
-    if ((address < 0) || (address > data.length-1)) {
+    if ((address < 0) || (address > getSize()-1)) {
       message( "-W- " + toString() 
                + ".setDataAt: address out-of-range, ignored: " + address);
       return;
@@ -296,17 +516,75 @@ public class  GenericMemory
 
     last_write_addr = address;
     last_write_data = value;
-    data[address]   = value;
+    if (storage != null) storage.set( address, value );
+    else                 data[address]   = value;
+    markDirty( address );
+
+  }
+
+  /**
+   * set the word at address to value if it is expect, and return true;
+   * otherwise leave it and return false. Atomic with the "concurrent"
+   * storage; the other backends compare and set without synchronization,
+   * for the single simulation thread. value is masked as in setDataAt().
+   */
+  public boolean compareAndSetDataAt( int address, long expect, long value ) {
+    if ((address < 0) || (address > getSize()-1)) {
+      message( "-W- " + toString() 
+               + ".compareAndSetDataAt: address out-of-range, ignored: " + address);
+      return false;
+    }
+
+    if (value != -1) { 
+      value = value & bit_mask;
+    }
 
+    if (storage instanceof ConcurrentStorage) {
+      if (!((ConcurrentStorage) storage).compareAndSet( address, expect, value )) {
+        return false;
+      }
+    }
+    else if (storage != null) {
+      if (storage.get( address ) != expect) return false;
+      storage.set( address, value );
+    }
+    else {
+      if (data[address] != expect) return false;
+      data[address] = value;
+    }
+    markDirty( address );
+    last_write_addr = address;
+    last_write_data = value;
+    return true;
   }
 
   public long getDataAt( int address ) {
     last_read_addr = address;
-    last_read_data = data[address];
+    last_read_data = (storage != null) ? storage.get( address ) : data[address];
 
     return last_read_data;
   }
 
+
+  /**
+   * copy length words starting at address into dst[offset...],
+   * for any storage backend.
+   */
+  public void getWords( int address, long dst[], int offset, int length ) {
+    if (storage != null) storage.getWords( address, dst, offset, length );
+    else System.arraycopy( data, address, dst, offset, length );
+  }
+
+  /**
+   * copy length words from src[offset...] into the memory at address,
+   * for any storage backend. Values are not masked.
+   */
+  public void setWords( int address, long src[], int offset, int length ) {
+    if (storage != null) storage.setWords( address, src, offset, length );
+    else System.arraycopy( src, offset, data, address, length );
+    markDirty( address, length );
+  }
+
   public int getBitsPerWord() {
     return n_bits;
   }
@@ -327,14 +605,111 @@ public class  GenericMemory
     return false;
   }
 
+  /**
+   * return the data array. With a WordStorage backend, this is a copy of
+   * the current contents, and changes to it are not written back;
+   * use setDataArray() for that.
+   */
   public long[] getDataArray() {
-    return data;
+    if (storage == null) return data;
+
+    long tmp[] = new long[ storage.size() ];
+    storage.getWords( 0, tmp, 0, tmp.length );
+    return tmp;
   }
 
+  /**
+   * replace the data array. With a WordStorage backend, the values are
+   * copied into the storage instead.
+   */
   public void setDataArray( long[] data ) {
-    this.data = data;
+    if (storage == null) {
+      this.data = data;
+    }
+    else {
+      storage.setWords( 0, data, 0, Math.min( data.length, storage.size() ));
+    }
+    markAllDirty();
   }
 
+  /* dirty pages */
+
+  public int getPageCount() {
+    return (n_words + DIRTY_PAGE_WORDS - 1) >>> DIRTY_PAGE_BITS;
+  }
+
+  /**
+   * mark the page of address dirty, after the word was stored. The bit
+   * is only written if it is not set yet, and then atomically. Together
+   * with clearDirtyPage() before the page is copied, a write from
+   * another thread is either in the copy or leaves the page dirty; with
+   * the "concurrent" storage, whose stores are volatile like this read.
+   */
+  protected final void markDirty( int address ) {
+    int  page = address >>> DIRTY_PAGE_BITS;
+    long bit  = 1L << page;
+    if (((long) DIRTY.getVolatile( dirty_pages, page >>> 6 ) & bit) == 0) {
+      DIRTY.getAndBitwiseOr( dirty_pages, page >>> 6, bit );
+    }
+  }
+
+  protected void markDirty( int address, int length ) {
+    if (length <= 0) return;
+    int last = (address + length - 1) >>> DIRTY_PAGE_BITS;
+    for( int page = address >>> DIRTY_PAGE_BITS; page <= last; page++ ) {
+      markDirty( page << DIRTY_PAGE_BITS );
+    }
+  }
+
+  protected void markAllDirty() {
+    markDirty( 0, n_words );
+  }
+
+  public boolean isPageDirty( int page ) {
+    return (dirty_pages[page >>> 6] & (1L << page)) != 0;
+  }
+
+  /**
+   * return the first dirty page at or after page, or -1.
+   */
+  public int nextDirtyPage( int page ) {
+    int i = page >>> 6;
+    if (i >= dirty_pages.length) return -1;
+    long bits = dirty_pages[i] & (-1L << page);
+    while( bits == 0 ) {
+      if (++i >= dirty_pages.length) return -1;
+      bits = dirty_pages[i];
+    }
+    return (i << 6) + Long.numberOfTrailingZeros( bits );
+  }
+
+  public int getDirtyPageCount() {
+    int n = 0;
+    for( int i=0; i < dirty_pages.length; i++ ) {
+      n += Long.bitCount( dirty_pages[i] );
+    }
+    return n;
+  }
+
+  /**
+   * clear the dirty bit of page, and return whether it was set. The
+   * page must be read after this, so that a concurrent write is either
+   * in the copy or marks the page dirty again.
+   */
+  public boolean clearDirtyPage( int page ) {
+    long bit = 1L << page;
+    if ((dirty_pages[page >>> 6] & bit) == 0) return false;
+    long old = (long) DIRTY.getAndBitwiseAnd( dirty_pages, page >>> 6, ~bit );
+    return (old & bit) != 0;
+  }
+
+  public void clearDirtyPages() {
+    for( int i=0; i < dirty_pages.length; i++ ) {
+      DIRTY.setVolatile( dirty_pages, i, 0L );
+    }
+  }
+
+
   public boolean merge( java.io.BufferedReader reader ) {
     try {
       return parse( reader );
@@ -347,55 +722,46 @@ public class  GenericMemory
     }
   }
 
-  public synchronized 
-  void addMemoryListener( MemoryListener ML ) {
-
-    MemoryListener  tmp[] = new MemoryListener[ _listenerCount+1 ];
-    for( int i=0; i < _listenerCount; i++ ) {    
-      tmp[i] = _listenerArray[i];
-    }
-    tmp[ _listenerCount ] = ML;                  
-
-    _listenerArray = tmp;
-    _listenerCount = tmp.length;
+  /**
+   * add ML to a copy of the listener array, and publish the copy with
+   * a compareAndSet; retried if another thread changed the array first.
+   */
+  public void addMemoryListener( MemoryListener ML ) {
+    MemoryListener old[], tmp[];
+    do {
+      old = _listenerArray;
+      tmp = new MemoryListener[ old.length+1 ];
+      System.arraycopy( old, 0, tmp, 0, old.length );
+      tmp[ old.length ] = ML;
+    } while( !LISTENERS.compareAndSet( this, old, tmp ));
   }
 
 
-  public synchronized
-  void removeMemoryListener( MemoryListener ML ) {
-
-   
-    if (_listenerCount == 0) {
-      message( "-W- No memory listeners registers. Cannot remove " + ML );
-      return;
-    }
-
-   
-    boolean found = false;
-    for( int i=0; i < _listenerCount; i++ ) {
-      if (_listenerArray[i] == ML) {
-        found = true; break;
+  public void removeMemoryListener( MemoryListener ML ) {
+    MemoryListener old[], tmp[];
+    do {
+      old = _listenerArray;
+      if (old.length == 0) {
+        message( "-W- No memory listeners registers. Cannot remove " + ML );
+        return;
       }
-    }
-    if (!found) {
-      message( "-W- Cannot remove unregistered MemoryListener " + ML );
-      return;
-    }
 
-    if (_listenerCount == 1) { 
-      _listenerArray = null;
-      _listenerCount = 0;
-      return;
-    }
-
-    MemoryListener tmp[] = new MemoryListener[ _listenerCount-1 ];
-    for( int i=0, j=0; i < _listenerCount; i++ ) {
-      if (_listenerArray[i] == ML) continue;
-      tmp[j++] = _listenerArray[i];
-    }
+      int found = -1;
+      for( int i=0; i < old.length; i++ ) {
+        if (old[i] == ML) {
+          found = i; break;
+        }
+      }
+      if (found < 0) {
+        message( "-W- Cannot remove unregistered MemoryListener " + ML );
+        return;
+      }
 
-    _listenerArray = tmp;
-    _listenerCount = tmp.length;
+      tmp = (old.length == 1) ? NO_LISTENERS : new MemoryListener[ old.length-1 ];
+      for( int i=0, j=0; i < old.length; i++ ) {
+        if (i != found) tmp[j++] = old[i];
+      }
+    } while( !LISTENERS.compareAndSet( this, old, tmp ));
   }
 
 
@@ -445,19 +811,112 @@ public class  GenericMemory
 
  
 
+  /**
+   * share the images of memories in storage mode "sparse" initialized
+   * from the same file; see MemoryImageCache. In the other storage
+   * modes, setting this has no effect.
+   */
+  public void setSharedImages( boolean b ) {
+    share_images = b;
+  }
+
+  public boolean getSharedImages() {
+    return share_images;
+  }
+
+
+  /**
+   * initialize the freshly created memory from resourcename: from the
+   * MemoryImageCache with shared images, else via parseRAM(). Images
+   * are only shared in storage mode "sparse", whose SparseStorage the
+   * CopyOnWriteStorage extends, and without an InstructionDecoder,
+   * which needs the #label lines.
+   */
+  protected void loadImage( String resourcename ) {
+    if (share_images && _decoder == null && "sparse".equals( storage_mode )) {
+      try {
+        loadSharedImage( resourcename );
+        return;
+      }
+      catch( Exception e ) {
+        message( "-W- " + toString() + ": cannot share " + resourcename
+                 + ", parsing it: " + e );
+        createMemory();
+      }
+    }
+    parseRAM( resourcename );
+  }
+
+
+  /**
+   * stamp the contents of resourcename, parse them into a new image on
+   * a cache miss, and use a CopyOnWriteStorage on the cached image.
+   */
+  protected void loadSharedImage( String resourcename ) throws IOException {
+    File   file = new File( resourcename );
+    String name = resourcename;
+    byte   content[] = null;
+    String stamp;
+    if (file.isAbsolute() && file.isFile()) {
+      name  = file.getCanonicalPath();
+      stamp = MemoryImageCache.getStamp( file );
+    }
+    else {
+      InputStream is = hades.manager.DesignManager.getDesignManager().
+                         getInputStream( this, resourcename );
+      try {
+        content = is.readAllBytes();
+      }
+      finally {
+        is.close();
+      }
+      stamp = MemoryImageCache.getStamp( content );
+    }
+
+    String        key   = MemoryImageCache.getKey( name, n_words, n_bits );
+    SparseStorage image = MemoryImageCache.lookup( key, stamp );
+    if (image == null) {
+      if (storage != null) storage.close();
+      image   = new SparseStorage( n_words );
+      storage = image;
+      data    = null;
+
+      MemoryImageLoader loader = new MemoryImageLoader( this, resourcename );
+      if (content == null) loader.load( file );
+      else                 loader.load( new ByteArrayInputStream( content ));
+      last_load = loader;
+      if (debug) message( "-I- " + toString() + ": " + loader );
+
+      image = MemoryImageCache.publish( key, stamp, image );
+    }
+    storage = new CopyOnWriteStorage( image );
+    data    = null;
+    markAllDirty();
+  }
+
+
+  /**
+   * initialize the memory from resourcename. Local files are memory-mapped,
+   * other resources are read via the DesignManager; both are parsed by
+   * a MemoryImageLoader, whose statistics are kept in last_load.
+   */
   public void parseRAM( String resourcename ) {
     InputStream is = null;
-    BufferedReader br = null;
+    MemoryImageLoader loader = new MemoryImageLoader( this, resourcename );
 
     try {
-      is = hades.manager.DesignManager.getDesignManager().
-             getInputStream( this, resourcename);
-      br = new BufferedReader( new InputStreamReader( is ));
-
-      parse( br );
-
-      br.close();
-      is.close();
+      File file = new File( resourcename );
+      if (file.isAbsolute() && file.isFile()) {
+        loader.load( file );
+      }
+      else {
+        is = hades.manager.DesignManager.getDesignManager().
+               getInputStream( this, resourcename);
+        loader.load( is );
+        is.close();
+      }
+      last_load = loader;
+      if (debug) message( "-I- " + toString() + ": " + loader );
     }
     catch( Exception e ) {
       message( "-E- " + toString() + ".parseRAM(): Couldn't read from " 
@@ -550,9 +1009,11 @@ public class  GenericMemory
     String  addrString, valueString;
     int n_chars = getHexDigitsPerWord();
 
-    for( int i=0; i < data.length; i++ ) {
+    int n = getSize();
+    for( int i=0; i < n; i++ ) {
       addrString  = getHexString( i, 4 );
-      valueString = getHexString( data[i], n_chars );
+      valueString = getHexString( (storage != null) ? storage.get( i ) : data[i],
+                                  n_chars );
       PW.println( addrString + ":" + valueString );
     } 
     PW.flush();
@@ -560,6 +1021,65 @@ public class  GenericMemory
   }
 
 
+
+  /**
+   * write the memory contents to a binary MemorySnapshot file,
+   * much faster to write and read back than the text format of save().
+   */
+  public boolean saveSnapshot( String filename ) {
+    try {
+      MemorySnapshot.save( this, new File( filename ));
+      return true;
+    }
+    catch( Exception e ) {
+      message( "-E- " + toString() + ".saveSnapshot: " + e );
+      return false;
+    }
+  }
+
+
+  /**
+   * write the pages changed since the last snapshot to a delta file,
+   * to be replayed by restoreSnapshot( base, deltas ). Fails unless a
+   * base snapshot was saved or restored before.
+   */
+  public boolean saveDeltaSnapshot( String filename ) {
+    try {
+      MemorySnapshot.saveDelta( this, new File( filename ));
+      return true;
+    }
+    catch( Exception e ) {
+      message( "-E- " + toString() + ".saveDeltaSnapshot: " + e );
+      return false;
+    }
+  }
+
+
+  /**
+   * restore the memory contents from a MemorySnapshot file.
+   * Memory listeners are not notified.
+   */
+  public boolean restoreSnapshot( String filename ) {
+    return restoreSnapshot( filename, new String[0] );
+  }
+
+  /**
+   * restore the memory contents from a MemorySnapshot file and the
+   * delta files written after it, in order.
+   */
+  public boolean restoreSnapshot( String base, String deltas[] ) {
+    try {
+      File files[] = new File[deltas.length];
+      for( int i=0; i < deltas.length; i++ ) files[i] = new File( deltas[i] );
+      MemorySnapshot.restore( this, new File( base ), files );
+      return true;
+    }
+    catch( Exception e ) {
+      message( "-E- " + toString() + ".restoreSnapshot: " + e );
+      return false;
+    }
+  }
+
   
 
   protected hades.gui.MemoryEditorFrame  MEF = null;
@@ -601,22 +1121,84 @@ public class  GenericMemory
                                        long old_value,
                                        long new_value ) 
   {
-    if (_listenerCount > 0) {
-      for( int i=0; i < _listenerCount; i++ ) {
-        _listenerArray[i].memoryWrite( address, old_value, new_value );
-      }
+    if (_listenerArray.length > 0) {
+      if (batcher != null) batcher.write( address, old_value, new_value );
+      else                 deliverWrite( address, old_value, new_value );
     }
   }
 
 
   protected void notifyReadListeners( int address, long value ) {
-    if (_listenerCount > 0) {
-      for( int i=0; i < _listenerCount; i++ ) {
-        _listenerArray[i].memoryRead( address, value );
-      }
+    if (_listenerArray.length > 0) {
+      if (batcher != null) batcher.read( address, value );
+      else                 deliverRead( address, value );
+    }
+  }
+
+
+  void deliverWrite( int address, long old_value, long new_value ) {
+    MemoryListener tmp[] = _listenerArray;
+    for( int i=0; i < tmp.length; i++ ) {
+      tmp[i].memoryWrite( address, old_value, new_value );
+    }
+  }
+
+
+  void deliverRead( int address, long value ) {
+    MemoryListener tmp[] = _listenerArray;
+    for( int i=0; i < tmp.length; i++ ) {
+      tmp[i].memoryRead( address, value );
+    }
+  }
+
+
+  /**
+   * select how memory listeners are notified: interval -1 calls them
+   * synchronously (the default), otherwise events are collected by a
+   * ListenerBatcher and delivered on a separate thread, every interval
+   * milliseconds, or once per simulation time step for interval 0.
+   * The default comes from the Hades.GenericMemory.ListenerBatchInterval
+   * property. The flusher thread of a previous batcher is stopped.
+   */
+  public void setListenerBatchInterval( int interval ) {
+    if (batcher != null) {
+      batcher.close();
+      batcher = null;
+    }
+    if (interval >= 0) {
+      int capacity = (int) Math.min( 2L * Math.max( n_words, 1 ), 1 << 16 );
+      batcher = new ListenerBatcher( this, interval, capacity );
     }
   }
 
+  public ListenerBatcher getListenerBatcher() {
+    return batcher;
+  }
+
+
+  /**
+   * release the threads of this memory when it is removed from the
+   * design, or replaced as a sub-table: stop the listener batching.
+   * Subclasses with sub-tables dispose of them, too.
+   */
+  public void dispose() {
+    setListenerBatchInterval( -1 );
+  }
+
+  public void deleteSimObject() {
+    dispose();
+    super.deleteSimObject();
+  }
+
+
+  /**
+   * to be called by subclasses once per evaluate(), so that batched
+   * listener events are delivered per simulation time step.
+   */
+  protected void listenerTimeStep( double time ) {
+    if (batcher != null) batcher.timeStep( time );
+  }
+
 
   public void dbg( String msg ) {
     System.out.println( msg );
@@ -630,6 +1212,7 @@ public class  GenericMemory
         + "\n"
         + "last read at " + last_read_addr + " data= " + last_read_data + "\n"
         + "last write at " + last_write_addr + " data= " + last_write_data
+        + ((last_load != null) ? "\n" + last_load : "")
     ;
   }
 
@@ -0,0 +1,346 @@
+/* IndirectTargetCache.java - gshare.IndirectTargetCache
+ *
+ * 17.10.26 - unregister the metrics in dispose()
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.PrintStream;
+
+import  jfig.utils.SetupManager;
+
+
+/**
+ * IndirectTargetCache - a tagged, direct-mapped target cache for
+ * indirect jumps and calls, indexed by the PC xor a path history of
+ * the recent indirect targets, so that one jump can hold a different
+ * target for each path leading to it.
+ * <p>
+ * Each line is a word of this GenericMemory,
+ * <pre>
+ *   [ valid | tag | target ]
+ * </pre>
+ * with the tag the PC bits above the index. The path history has
+ * history_bits (at most index_bits); each resolved target is folded to
+ * history_bits by xor and xored into the history rotated left by two,
+ * so that aligned targets still reach the low index bits.
+ * history_bits = 0 indexes by the PC alone.
+ * <p>
+ * The ports are those of gshare. VP is "11" on a tag hit and "00"
+ * otherwise, PRED the target of the hit line. nWE 3 resolves the
+ * indirect branch at PCD to DESTCD, installing the target and updating
+ * the history; 1 invalidates the line of PCD; 2 is ignored, as indirect
+ * branches are always taken. The history only changes on resolve, so
+ * fetch() uses the history of the last resolved branch.
+ * <p>
+ * getMetrics() counts the lookups and tag hits of fetch() and
+ * predict(), the mispredicted and missed targets on resolve, and the
+ * line writes and evictions.
+ */
+public class IndirectTargetCache extends PredictorComponent {
+
+  protected  int           index_bits, tag_bits, target_bits, history_bits;
+  protected  long          index_mask, tag_mask, target_mask, history_mask;
+  protected  long          valid_bit;
+
+  protected  long          history;
+  protected  long          predictedTarget;
+
+  protected  PredictorMetrics  metrics;
+
+
+  public IndirectTargetCache() {
+    super();
+    history_bits = SetupManager.getInteger( "Hades.IndirectTargetCache.HistoryBits", 8 );
+    setGeometry( SetupManager.getInteger( "Hades.IndirectTargetCache.IndexBits",   8 ),
+                 SetupManager.getInteger( "Hades.IndirectTargetCache.TagBits",     4 ),
+                 SetupManager.getInteger( "Hades.IndirectTargetCache.TargetBits", 12 ));
+  }
+
+
+  /**
+   * 2^index_bits lines with a tag of tag_bits and a target of
+   * target_bits. PCF/PCD are index_bits+tag_bits wide, DESTCD is
+   * target_bits wide.
+   */
+  public void setGeometry( int index_bits, int tag_bits, int target_bits ) {
+    if (index_bits < 0 || index_bits > 26 || tag_bits < 0
+        || target_bits < 1 || tag_bits + target_bits > 61)
+    {
+      message( "-E- " + toString() + ": illegal geometry " + index_bits
+               + "/" + tag_bits + "/" + target_bits );
+      return;
+    }
+    this.tag_bits = tag_bits;
+    resize( 1 << index_bits, 1 + tag_bits + target_bits );
+  }
+
+  /**
+   * the path history width, clipped to index_bits; 0 for PC indexing.
+   */
+  public void setHistoryBits( int history_bits ) {
+    this.history_bits = Math.max( 0, Math.min( history_bits, index_bits ));
+    history_mask = (1L << this.history_bits) - 1;
+    history      = 0;
+  }
+
+  public int getIndexBits()   { return index_bits; }
+  public int getTagBits()     { return tag_bits; }
+  public int getTargetBits()  { return target_bits; }
+  public int getHistoryBits() { return history_bits; }
+
+  public long getHistory() {
+    return history;
+  }
+
+
+  public void setSize( int n_words ) {
+    resize( n_words, getBitsPerWord() );
+  }
+
+  public void setBitsPerWord( int n_bits ) {
+    resize( getSize(), n_bits );
+  }
+
+  public boolean resize( int n_words, int n_bits ) {
+    this.n_words = n_words;
+    this.n_bits  = n_bits;
+
+    createMemory();
+    initializeWithZeroes();
+
+    constructStandardValues();
+    constructPorts();
+    return true;
+  }
+
+
+  /**
+   * derive the geometry from n_words, rounded up to a power of two,
+   * and n_bits, keeping the tag width.
+   */
+  public void createMemory() {
+    int ib = 0;
+    while ((1 << ib) < n_words && ib < 26) ib++;
+    n_words     = 1 << ib;
+    index_bits  = ib;
+    target_bits = Math.max( 1, n_bits - 1 - tag_bits );
+    n_bits      = 1 + tag_bits + target_bits;
+
+    index_mask  = (1L << index_bits) - 1;
+    tag_mask    = (1L << tag_bits) - 1;
+    target_mask = (1L << target_bits) - 1;
+    valid_bit   = 1L << (tag_bits + target_bits);
+
+    super.createMemory();
+
+    if (metrics == null) metrics = new PredictorMetrics( n_words );
+    metrics.resize( n_words, 1 );
+    setHistoryBits( history_bits );
+  }
+
+
+  /**
+   * options of the design file: index=, tag=, target= and history= bits.
+   */
+  protected boolean setOption( String key, String value ) {
+    int bits;
+    if      (key.equals( "index" )) {
+      index_bits = Integer.parseInt( value );
+      n_words    = 1 << index_bits;
+    }
+    else if (key.equals( "tag" )) {
+      bits     = Integer.parseInt( value );
+      n_bits  += bits - tag_bits;
+      tag_bits = bits;
+    }
+    else if (key.equals( "target" ))  n_bits = 1 + tag_bits + Integer.parseInt( value );
+    else if (key.equals( "history" )) history_bits = Integer.parseInt( value );
+    else return super.setOption( key, value );
+    return true;
+  }
+
+  protected String getOptions() {
+    return super.getOptions()
+         + " index=" + index_bits + " tag=" + tag_bits
+         + " target=" + target_bits + " history=" + history_bits;
+  }
+
+  public boolean initialize( String s ) {
+    boolean ok = super.initialize( s );
+    setHistoryBits( history_bits );
+    return ok;
+  }
+
+
+  /**
+   * unregister the metrics MBean and stop the periodic dump, when the
+   * component is removed from the design.
+   */
+  public void dispose() {
+    super.dispose();
+    metrics.unregister();
+    metrics.setDumpInterval( getFullName(), 0, System.out );
+  }
+
+
+  public void elaborate( Object arg ) {
+    metrics.register( getFullName() );
+    metrics.setDumpInterval( getFullName(),
+      SetupManager.getInteger( "Hades.IndirectTargetCache.MetricsDumpInterval", 0 ),
+      System.out );
+    super.elaborate( arg );
+  }
+
+
+  protected int getPCWidth()     { return index_bits + tag_bits; }
+  protected int getTargetWidth() { return target_bits; }
+  protected int getVPWidth()     { return 2; }
+
+  protected String[] getSymbolLabel() {
+    return new String[] { "Indirect", "Targets" };
+  }
+
+  protected final long getPCMask() {
+    return (1L << (index_bits + tag_bits)) - 1;
+  }
+
+
+  /* lookup, for the branch at word address pc */
+
+  protected final int getLine( long pc ) {
+    return (int) ((pc ^ history) & index_mask);
+  }
+
+  protected final long getTag( long pc ) {
+    return (pc >>> index_bits) & tag_mask;
+  }
+
+  /**
+   * return the line data on a tag hit, or -1.
+   */
+  protected final long matchLine( int line, long pc ) {
+    long data = getDataAt( line );
+    if ((data & valid_bit) == 0
+        || ((data >>> target_bits) & tag_mask) != getTag( pc )) return -1;
+    return data;
+  }
+
+  protected long lookupLine( long pc ) {
+    long data = matchLine( getLine( pc ), pc );
+    metrics.lookup( data < 0 ? -1 : 0 );
+    return data;
+  }
+
+
+  protected void fetch( long pcf ) {
+    int  line = getLine( pcf );
+    long data = lookupLine( pcf );
+    if (data >= 0) {
+      out_VP   = vector_VP[3];
+      out_PRED = getPredVector( data & target_mask );
+    }
+    else {
+      out_VP   = vector_VP[0];
+      out_PRED = vector_PRED_000;
+    }
+    notifyReadListeners( line, getDataAt( line ));
+  }
+
+
+  protected void strobe( int nWE, long pcd, long destcd ) {
+    if (nWE == 3) {
+      resolve( pcd, destcd & target_mask );
+    }
+    else if (nWE == 1) {
+      int  line  = getLine( pcd );
+      long old_v = getDataAt( line );
+      if (old_v != 0) {
+        setDataAt( line, 0 );
+        notifyWriteListeners( line, old_v, 0 );
+      }
+    }
+  }
+
+
+  /**
+   * the indirect branch at word address pc went to word address target:
+   * count a wrong or missing prediction, install the target, and shift
+   * the target into the path history.
+   */
+  protected void resolve( long pc, long target ) {
+    int  line  = getLine( pc );
+    long old_v = getDataAt( line );
+    long hit   = matchLine( line, pc );
+    metrics.resolve( hit < 0 || (hit & target_mask) != target );
+
+    long new_v = valid_bit | (getTag( pc ) << target_bits) | target;
+    if (new_v != old_v) {
+      setDataAt( line, new_v );
+      notifyWriteListeners( line, old_v, new_v );
+      metrics.write( line, hit < 0 && (old_v & valid_bit) != 0 );
+    }
+    pushHistory( target );
+  }
+
+  protected void pushHistory( long target ) {
+    if (history_bits == 0) return;
+    long f = 0;
+    for( long t = target; t != 0; t >>>= history_bits ) f ^= t;
+    long h = history;
+    if (history_bits > 2) h = (h << 2) | (h >>> (history_bits - 2));
+    history = (h ^ f) & history_mask;
+  }
+
+
+  protected void resetPredictor() {
+    history = 0;
+  }
+
+
+  /* BranchPredictor, byte addresses as in gshare */
+
+  /**
+   * return true on a tag hit for the indirect branch at pc; the target
+   * takes its upper bits from pc.
+   */
+  public boolean predict( long pc ) {
+    long pcf  = (pc >>> 2) & getPCMask();
+    long data = lookupLine( pcf );
+    if (data < 0) return false;
+    predictedTarget = (pc & ~((target_mask << 2) | 3)) | ((data & target_mask) << 2);
+    return true;
+  }
+
+  public long getPredictedTarget() {
+    return predictedTarget;
+  }
+
+  public void update( long pc, long target, boolean taken ) {
+    if (!taken) return;
+    resolve( (pc >>> 2) & getPCMask(), (target >>> 2) & target_mask );
+  }
+
+
+  /**
+   * the always-on hit/miss counters.
+   */
+  public PredictorMetrics getMetrics() {
+    return metrics;
+  }
+
+
+  public void printReport( PrintStream ps ) {
+    ps.println( "indirect cache   " + n_words + " lines, history "
+                + history_bits + ", " + metrics.getLookups() + " lookups, "
+                + metrics.getTagHits() + " hits, "
+                + metrics.getMispredictions() + " wrong or missing" );
+  }
+
+
+  public long getStorageBits() {
+    return (long) n_words * n_bits + history_bits;
+  }
+
+}
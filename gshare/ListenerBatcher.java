@@ -0,0 +1,293 @@
+/* ListenerBatcher.java - gshare.ListenerBatcher
+ *
+ * 17.10.26 - grow a full batch instead of waiting for the flusher
+ * 17.10.26 - wait for the flusher when a batch is full, instead of dropping
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+
+/**
+ * ListenerBatcher - collects the read/write events of a GenericMemory
+ * into primitive buffers, and delivers them to the MemoryListeners on a
+ * separate daemon thread, so that the simulation thread never waits for
+ * listener work such as the repaints of the memory editor.
+ * <p>
+ * Within one batch, repeated writes to the same address are collapsed
+ * into one event (first old value, last new value), and so are repeated
+ * reads. A batch is delivered every interval milliseconds, or, with
+ * interval 0, whenever the simulation time advances (see timeStep()).
+ * A full batch is doubled in size, so that no event is lost and the
+ * simulation thread never waits for the flusher. Since events are
+ * collapsed per address, a batch never needs more than two events per
+ * memory word; the growth is counted (getGrowCount()). close() stops the flusher thread; GenericMemory calls it when the
+ * batching is changed or turned off, and in deleteSimObject().
+ */
+public class ListenerBatcher implements Runnable {
+
+  public final static int  READ  = 0;
+  public final static int  WRITE = 1;
+
+  /**
+   * one batch of events, with an open-addressing index over
+   * (address, kind) to find the event to collapse into.
+   */
+  static class Batch {
+    int    kind[], address[];
+    long   old_value[], new_value[];
+    int    count;
+    int    index[];       // slot+1, or 0 for empty
+    int    index_mask;
+
+    Batch( int capacity ) {
+      kind      = new int[capacity];
+      address   = new int[capacity];
+      old_value = new long[capacity];
+      new_value = new long[capacity];
+      int n = Integer.highestOneBit( capacity ) << 2;
+      index      = new int[n];
+      index_mask = n - 1;
+    }
+
+    /**
+     * enlarge the batch to capacity events, keeping its events.
+     */
+    void grow( int capacity ) {
+      kind      = java.util.Arrays.copyOf( kind, capacity );
+      address   = java.util.Arrays.copyOf( address, capacity );
+      old_value = java.util.Arrays.copyOf( old_value, capacity );
+      new_value = java.util.Arrays.copyOf( new_value, capacity );
+      int n = Integer.highestOneBit( capacity ) << 2;
+      index      = new int[n];
+      index_mask = n - 1;
+      for( int s=0; s < count; s++ ) {
+        int h = ((address[s] * 0x9e3779b9) ^ kind[s]) & index_mask;
+        while( index[h] != 0 ) h = (h + 1) & index_mask;
+        index[h] = s + 1;
+      }
+    }
+
+    /**
+     * return the slot for (address, kind), creating it if necessary;
+     * -1 if the batch is full.
+     */
+    int slot( int a, int k ) {
+      int h = ((a * 0x9e3779b9) ^ k) & index_mask;
+      while( true ) {
+        int s = index[h] - 1;
+        if (s < 0) {
+          if (count == kind.length) return -1;
+          s = count++;
+          index[h]   = s + 1;
+          kind[s]    = k;
+          address[s] = a;
+          old_value[s] = new_value[s] = 0;
+          return s | 0x80000000;    // new slot
+        }
+        if (address[s] == a && kind[s] == k) return s;
+        h = (h + 1) & index_mask;
+      }
+    }
+
+    void clear() {
+      java.util.Arrays.fill( index, 0 );
+      count = 0;
+    }
+  }
+
+
+  protected GenericMemory  memory;
+  protected int            interval;        // ms, 0 = per time step
+
+  private   Batch          current, spare;
+  private   boolean        flush_requested, closed;
+  private   double         last_time = -1.0;
+  private   int            max_capacity;    // two events per word
+  private   long           n_events, n_delivered, n_grown;
+  private   Thread         flusher;
+
+
+  public ListenerBatcher( GenericMemory memory, int interval, int capacity ) {
+    this.memory   = memory;
+    this.interval = interval;
+    this.current  = new Batch( capacity );
+    this.spare    = new Batch( capacity );
+    this.max_capacity = (int) Math.min( 2L * Math.max( memory.getSize(), 1 ),
+                                        1 << 30 );
+
+    flusher = new Thread( this, "ListenerBatcher " + memory.getName() );
+    flusher.setDaemon( true );
+    flusher.start();
+  }
+
+
+  public synchronized void write( int address, long old_value, long new_value ) {
+    n_events++;
+    if (closed) {
+      memory.deliverWrite( address, old_value, new_value );
+      return;
+    }
+    int s;
+    while( (s = current.slot( address, WRITE )) == -1 ) {
+      if (!grow()) {
+        memory.deliverWrite( address, old_value, new_value );
+        return;
+      }
+    }
+    if (s < 0) {
+      s &= 0x7fffffff;
+      current.old_value[s] = old_value;
+    }
+    current.new_value[s] = new_value;
+  }
+
+
+  public synchronized void read( int address, long value ) {
+    n_events++;
+    if (closed) {
+      memory.deliverRead( address, value );
+      return;
+    }
+    int s;
+    while( (s = current.slot( address, READ )) == -1 ) {
+      if (!grow()) {
+        memory.deliverRead( address, value );
+        return;
+      }
+    }
+    current.new_value[s & 0x7fffffff] = value;
+  }
+
+
+  /**
+   * the current batch is full: double its size, and request a flush.
+   * Return false, to deliver the event synchronously, only if the
+   * batch cannot grow, which the collapsing per address prevents.
+   */
+  private boolean grow() {
+    int capacity = current.kind.length;
+    if (capacity >= max_capacity) return false;
+    current.grow( (int) Math.min( 2L * capacity, max_capacity ));
+    n_grown++;
+    flush_requested = true;
+    notifyAll();
+    return true;
+  }
+
+
+  /**
+   * called once per simulation step; with interval 0, a change of
+   * the simulation time triggers delivery of the pending events.
+   */
+  public void timeStep( double time ) {
+    if (interval == 0 && time != last_time) {
+      last_time = time;
+      flush();
+    }
+  }
+
+
+  /**
+   * request delivery of the pending events, without waiting for it.
+   */
+  public synchronized void flush() {
+    if (current.count > 0) {
+      flush_requested = true;
+      notifyAll();
+    }
+  }
+
+
+  public void run() {
+    while( true ) {
+      Batch batch;
+      synchronized( this ) {
+        try {
+          while( !closed && !flush_requested ) {
+            if (interval > 0) {
+              wait( interval );
+              break;
+            }
+            else wait();
+          }
+        }
+        catch( InterruptedException e ) {
+          closed = true;
+        }
+        if (current.count == 0) {
+          flush_requested = false;
+          if (closed) return;
+          continue;
+        }
+        batch   = current;
+        current = spare;
+        spare   = batch;
+        flush_requested = false;
+      }
+
+      // deliver outside the lock, the simulation thread keeps going
+      for( int s=0; s < batch.count; s++ ) {
+        if (batch.kind[s] == WRITE) {
+          memory.deliverWrite( batch.address[s], batch.old_value[s],
+                               batch.new_value[s] );
+        }
+        else {
+          memory.deliverRead( batch.address[s], batch.new_value[s] );
+        }
+      }
+      synchronized( this ) {
+        n_delivered += batch.count;
+      }
+      batch.clear();
+    }
+  }
+
+
+  /**
+   * deliver the pending events and stop the flusher thread.
+   * Events after close() are delivered synchronously.
+   */
+  public void close() {
+    synchronized( this ) {
+      if (closed) return;
+      closed = true;
+      flush_requested = true;
+      notifyAll();
+    }
+    if (Thread.currentThread() == flusher) return;
+    try {
+      flusher.join();
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+
+  public synchronized long getEventCount() {
+    return n_events;
+  }
+
+  public synchronized long getDeliveredCount() {
+    return n_delivered;
+  }
+
+  /**
+   * the number of times a full batch was enlarged.
+   */
+  public synchronized long getGrowCount() {
+    return n_grown;
+  }
+
+  public String toString() {
+    return "ListenerBatcher[interval=" + interval + " events=" + getEventCount()
+           + " delivered=" + getDeliveredCount()
+           + " grown=" + getGrowCount() + "]";
+  }
+
+}
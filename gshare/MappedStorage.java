@@ -0,0 +1,212 @@
+/* MappedStorage.java - gshare.MappedStorage
+ *
+ * 17.10.26 - refuse to overwrite other files, delete the temporary file
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+import  java.nio.ByteOrder;
+import  java.nio.MappedByteBuffer;
+import  java.nio.channels.FileChannel;
+
+
+/**
+ * MappedStorage - keeps the words of a GenericMemory in a memory-mapped
+ * file, outside the Java heap. Pages are only loaded when touched, so
+ * huge memories start instantly and add no GC pressure.
+ * <p>
+ * With a file name, the storage is persistent: a file whose header
+ * matches the memory geometry is reopened with its contents, see
+ * isReopened(). A new or empty file is initialized; any other file is
+ * refused with an IOException, so that it is never overwritten. Without
+ * a file name, a temporary file is used, which close() deletes.
+ * <p>
+ * File layout: a header page (magic 'GMMF', version, n_words, n_bits,
+ * base) followed by one little-endian long per word. Words are stored
+ * xor base, so that filling a fresh file with any value only sets base
+ * and does not touch the data pages.
+ */
+public class MappedStorage implements WordStorage {
+
+  public final static int  MAGIC       = 0x464d4d47;   // "GMMF" in the file
+  public final static int  VERSION     = 1;
+  public final static int  HEADER_SIZE = 4096;
+
+  private final static int  CHUNK_SHIFT = 27;          // 1 GByte per mapping
+  private final static int  CHUNK_MASK  = (1 << CHUNK_SHIFT) - 1;
+
+  protected int               n_words, n_bits;
+  protected File              file;
+  protected RandomAccessFile  raf;
+  protected MappedByteBuffer  chunks[];
+  protected boolean           reopened;
+  protected boolean           temporary;  // deleted by close()
+  protected boolean           clean;      // all stored words still zero
+  protected long              base;       // stored = value ^ base
+
+
+  public MappedStorage( int n_words, int n_bits, String filename )
+         throws IOException
+  {
+    this.n_words = n_words;
+    this.n_bits  = n_bits;
+
+    if (filename == null || filename.length() == 0) {
+      file = File.createTempFile( "GenericMemory", ".mem" );
+      file.deleteOnExit();
+      temporary = true;
+    }
+    else {
+      file = new File( filename );
+    }
+
+    raf = new RandomAccessFile( file, "rw" );
+    long length = HEADER_SIZE + 8L * n_words;
+
+    reopened = raf.length() == length && headerMatches();
+    if (!reopened && raf.length() > 0) {
+      raf.close();
+      throw new IOException( file + " exists and does not hold a "
+                             + n_words + "x" + n_bits + " memory, not overwritten" );
+    }
+    if (reopened) {
+      base = Long.reverseBytes( raf.readLong() );
+    }
+    else {
+      raf.setLength( 0 );
+      raf.setLength( length );   // sparse, reads as zeroes
+      base = 0;
+      writeHeader();
+    }
+    clean = !reopened;
+
+    FileChannel channel = raf.getChannel();
+    int n_chunks = (int) (((long) n_words + CHUNK_MASK) >>> CHUNK_SHIFT);
+    chunks = new MappedByteBuffer[ Math.max( n_chunks, 1 ) ];
+    for( int i=0; i < n_chunks; i++ ) {
+      long first = (long) i << CHUNK_SHIFT;
+      long words = Math.min( n_words - first, 1L << CHUNK_SHIFT );
+      chunks[i] = channel.map( FileChannel.MapMode.READ_WRITE,
+                               HEADER_SIZE + 8 * first, 8 * words );
+      chunks[i].order( ByteOrder.LITTLE_ENDIAN );
+    }
+  }
+
+
+  private boolean headerMatches() throws IOException {
+    if (raf.length() < HEADER_SIZE) return false;
+    raf.seek( 0 );
+    return Integer.reverseBytes( raf.readInt() ) == MAGIC
+        && Integer.reverseBytes( raf.readInt() ) == VERSION
+        && Integer.reverseBytes( raf.readInt() ) == n_words
+        && Integer.reverseBytes( raf.readInt() ) == n_bits;
+  }
+
+  private void writeHeader() throws IOException {
+    raf.seek( 0 );
+    raf.writeInt( Integer.reverseBytes( MAGIC ));
+    raf.writeInt( Integer.reverseBytes( VERSION ));
+    raf.writeInt( Integer.reverseBytes( n_words ));
+    raf.writeInt( Integer.reverseBytes( n_bits ));
+    raf.writeLong( Long.reverseBytes( base ));
+  }
+
+
+  /**
+   * true if an existing file with the same geometry was opened, so that
+   * the words hold the state of a previous run.
+   */
+  public boolean isReopened() {
+    return reopened;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+
+  public int size() {
+    return n_words;
+  }
+
+  public long get( int address ) {
+    return base ^ chunks[address >>> CHUNK_SHIFT].getLong( (address & CHUNK_MASK) << 3 );
+  }
+
+  public void set( int address, long value ) {
+    clean = false;
+    chunks[address >>> CHUNK_SHIFT].putLong( (address & CHUNK_MASK) << 3, value ^ base );
+  }
+
+
+  /**
+   * fill all words. As long as no word was written, this only changes
+   * base, so the pages of a fresh file are not touched.
+   */
+  public void fill( long value ) {
+    if (clean) {
+      base = value;
+      try {
+        writeHeader();
+      }
+      catch( IOException e ) {
+        System.err.println( "-E- MappedStorage.fill " + file + ": " + e );
+      }
+      return;
+    }
+    for( int i=0; i < n_words; i++ ) set( i, value );
+  }
+
+
+  public void getWords( int address, long dst[], int offset, int length ) {
+    for( int i=0; i < length; i++ ) {
+      dst[offset+i] = get( address+i );
+    }
+  }
+
+  public void setWords( int address, long src[], int offset, int length ) {
+    for( int i=0; i < length; i++ ) {
+      set( address+i, src[offset+i] );
+    }
+  }
+
+
+  /**
+   * write dirty pages back to the file.
+   */
+  public void force() {
+    for( int i=0; i < chunks.length; i++ ) {
+      if (chunks[i] != null) chunks[i].force();
+    }
+  }
+
+
+  /**
+   * flush and close the file, and delete a temporary file; the
+   * mappings are released by the GC.
+   */
+  public void close() {
+    try {
+      if (temporary) {
+        raf.close();
+        file.delete();
+      }
+      else {
+        force();
+        raf.close();
+      }
+    }
+    catch( IOException e ) {
+      System.err.println( "-E- MappedStorage.close " + file + ": " + e );
+    }
+  }
+
+
+  public String toString() {
+    return "mapped " + n_words + "x" + n_bits + " " + file
+           + (reopened ? " (reopened)" : "");
+  }
+
+}
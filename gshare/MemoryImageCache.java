@@ -0,0 +1,209 @@
+/* MemoryImageCache.java - gshare.MemoryImageCache
+ *
+ * 17.10.26 - stamp local files with their SHA-256 hash, too
+ * 17.10.26 - key files on path, mtime and size; soft, LRU-bounded images
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+import  java.lang.ref.SoftReference;
+import  java.nio.channels.FileChannel;
+import  java.security.MessageDigest;
+import  java.security.NoSuchAlgorithmException;
+import  java.util.LinkedHashMap;
+import  java.util.Map;
+import  java.util.concurrent.atomic.AtomicLong;
+
+import  jfig.utils.SetupManager;
+
+
+/**
+ * MemoryImageCache - the process-wide cache of parsed memory images,
+ * shared by all GenericMemory instances that load the same contents.
+ * <p>
+ * An image is a SparseStorage holding the words of an initialization
+ * file, parsed once and never written afterwards. Images are cached
+ * by resource name and memory geometry, and each entry carries a stamp
+ * of the contents it was parsed from, the SHA-256 hash of the bytes.
+ * A lookup with another stamp drops the stale entry, so that a file
+ * changed on disk is parsed again. Each memory gets a
+ * CopyOnWriteStorage on top of the image; see
+ * GenericMemory.setSharedImages().
+ * <p>
+ * The images are held by soft references, so that the garbage
+ * collector may reclaim those no memory uses anymore, and at most
+ * getMaxImages() entries are kept, dropping the least recently used
+ * (property Hades.MemoryImageCache.MaxImages, default 64).
+ * <p>
+ * Two memories loading the same new image at the same time may both
+ * parse it; the first one published is kept.
+ */
+public class MemoryImageCache {
+
+  private static class CachedImage {
+    String                        stamp;
+    SoftReference<SparseStorage>  image;
+
+    CachedImage( String stamp, SparseStorage image ) {
+      this.stamp = stamp;
+      this.image = new SoftReference<SparseStorage>( image );
+    }
+  }
+
+  private static int  max_images = SetupManager.getInteger(
+                                     "Hades.MemoryImageCache.MaxImages", 64 );
+
+  private final static LinkedHashMap<String,CachedImage>  images =
+    new LinkedHashMap<String,CachedImage>( 16, 0.75f, true ) {
+      protected boolean removeEldestEntry( Map.Entry<String,CachedImage> eldest ) {
+        return size() > max_images;
+      }
+    };
+
+  private final static AtomicLong  n_hits   = new AtomicLong();
+  private final static AtomicLong  n_misses = new AtomicLong();
+
+
+  /**
+   * the cache key for resource name, loaded into a memory of
+   * n_words x n_bits.
+   */
+  public static String getKey( String name, int n_words, int n_bits ) {
+    return name + ' ' + n_words + 'x' + n_bits;
+  }
+
+
+  /**
+   * the stamp of a local file: the SHA-256 hash of its contents,
+   * read through a memory mapping.
+   */
+  public static String getStamp( File file ) throws IOException {
+    MessageDigest md = newDigest();
+    RandomAccessFile raf = new RandomAccessFile( file, "r" );
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      for( long pos=0; pos < size; pos += Integer.MAX_VALUE ) {
+        long len = Math.min( size - pos, Integer.MAX_VALUE );
+        md.update( channel.map( FileChannel.MapMode.READ_ONLY, pos, len ));
+      }
+    }
+    finally {
+      raf.close();
+    }
+    return toHex( md.digest() );
+  }
+
+  /**
+   * the stamp of resource contents read into memory: their SHA-256 hash.
+   */
+  public static String getStamp( byte content[] ) {
+    return toHex( newDigest().digest( content ));
+  }
+
+  private static String toHex( byte hash[] ) {
+    StringBuffer sb = new StringBuffer();
+    for( int i=0; i < hash.length; i++ ) {
+      sb.append( Character.forDigit( (hash[i] >> 4) & 15, 16 ));
+      sb.append( Character.forDigit( hash[i] & 15, 16 ));
+    }
+    return sb.toString();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance( "SHA-256" );
+    }
+    catch( NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( "no SHA-256: " + e );
+    }
+  }
+
+
+  /**
+   * return the image for key parsed from contents with stamp, or null.
+   * An entry with another stamp, or whose image was reclaimed, is
+   * removed.
+   */
+  public static SparseStorage lookup( String key, String stamp ) {
+    SparseStorage image = null;
+    synchronized( images ) {
+      CachedImage entry = images.get( key );
+      if (entry != null) {
+        if (entry.stamp.equals( stamp )) image = entry.image.get();
+        if (image == null) images.remove( key );
+      }
+    }
+    if (image != null) n_hits.incrementAndGet();
+    else               n_misses.incrementAndGet();
+    return image;
+  }
+
+  /**
+   * add a freshly parsed image, which must not be written anymore,
+   * and return the image kept for key and stamp.
+   */
+  public static SparseStorage publish( String key, String stamp,
+                                       SparseStorage image )
+  {
+    synchronized( images ) {
+      CachedImage entry = images.get( key );
+      if (entry != null && entry.stamp.equals( stamp )) {
+        SparseStorage other = entry.image.get();
+        if (other != null) return other;
+      }
+      images.put( key, new CachedImage( stamp, image ));
+      return image;
+    }
+  }
+
+
+  /**
+   * the number of entries; some of their images may have been
+   * reclaimed already.
+   */
+  public static int size() {
+    synchronized( images ) {
+      return images.size();
+    }
+  }
+
+  public static long getHits() {
+    return n_hits.get();
+  }
+
+  public static long getMisses() {
+    return n_misses.get();
+  }
+
+
+  /**
+   * set the maximum number of entries, dropping the least recently
+   * used ones if there are more.
+   */
+  public static void setMaxImages( int n ) {
+    synchronized( images ) {
+      max_images = Math.max( n, 0 );
+      while( images.size() > max_images ) {
+        images.remove( images.keySet().iterator().next() );
+      }
+    }
+  }
+
+  public static int getMaxImages() {
+    return max_images;
+  }
+
+
+  /**
+   * drop all images; memories using them keep their pages.
+   */
+  public static void clear() {
+    synchronized( images ) {
+      images.clear();
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+/* MemoryImageLoader.java - gshare.MemoryImageLoader
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+import  java.nio.MappedByteBuffer;
+import  java.nio.channels.FileChannel;
+
+
+/**
+ * MemoryImageLoader - fast loader for memory initialization files.
+ * <p>
+ * Accepts the same format as GenericMemory.parse(): one "addr data" or
+ * "addr:data" pair of hex numbers per line, '#' and ';' comment lines,
+ * "#label addr name" lines for the InstructionDecoder, and data words
+ * containing an 'X' for undefined values. Unlike parse(), the input is
+ * scanned directly as bytes, in chunks of 1 MByte copied from a
+ * memory-mapped file or read from a stream, without creating a String
+ * per line.
+ * <p>
+ * After a load, the number of bytes, lines and words, and the elapsed
+ * time are available for throughput reports.
+ */
+public class MemoryImageLoader {
+
+  protected GenericMemory  memory;
+  protected String         name;
+
+  protected long  n_bytes, n_lines, n_words, n_errors;
+  protected long  elapsed_nanos;
+
+
+  public MemoryImageLoader( GenericMemory memory, String name ) {
+    this.memory = memory;
+    this.name   = name;
+  }
+
+
+  private final static int  CHUNK = 1 << 20;
+
+  private byte  buf[] = new byte[ CHUNK ];
+  private int   fill;      // valid bytes in buf
+
+
+  /**
+   * load from a local file, which is memory-mapped and parsed in chunks.
+   */
+  public void load( File file ) throws IOException {
+    long start = System.nanoTime();
+    RandomAccessFile raf = new RandomAccessFile( file, "r" );
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      for( long pos=0; pos < size; pos += Integer.MAX_VALUE ) {
+        long len = Math.min( size - pos, Integer.MAX_VALUE );
+        MappedByteBuffer mapped = channel.map( FileChannel.MapMode.READ_ONLY, pos, len );
+        while( mapped.hasRemaining() ) {
+          int n = Math.min( mapped.remaining(), room() );
+          mapped.get( buf, fill, n );
+          fill += n;
+          n_bytes += n;
+          consume( false );
+        }
+      }
+      consume( true );
+    }
+    finally {
+      raf.close();
+    }
+    elapsed_nanos = System.nanoTime() - start;
+  }
+
+
+  /**
+   * load from a stream, which is read in chunks.
+   */
+  public void load( InputStream is ) throws IOException {
+    long start = System.nanoTime();
+    int  n;
+    while( (n = is.read( buf, fill, room() )) >= 0 ) {
+      fill += n;
+      n_bytes += n;
+      consume( false );
+    }
+    consume( true );
+    elapsed_nanos = System.nanoTime() - start;
+  }
+
+
+  /**
+   * free space in buf, which is grown if a single line fills it.
+   */
+  private int room() {
+    if (fill == buf.length) {
+      byte tmp[] = new byte[ 2 * buf.length ];
+      System.arraycopy( buf, 0, tmp, 0, fill );
+      buf = tmp;
+    }
+    return buf.length - fill;
+  }
+
+
+  /**
+   * parse all complete lines in buf, and move a trailing partial line
+   * to the front; at eof, the partial line is parsed as well.
+   */
+  private void consume( boolean eof ) {
+    int i = 0;
+    int n = fill;
+    while( i < n ) {
+      int start = i;
+      while( i < n && buf[i] != '\n' ) i++;
+      if (i == n && !eof) {  // partial line
+        System.arraycopy( buf, start, buf, 0, n - start );
+        fill = n - start;
+        return;
+      }
+      int end = i;
+      if (end > start && buf[end-1] == '\r') end--;
+      i++;
+
+      n_lines++;
+      parseLine( buf, start, end );
+    }
+    fill = 0;
+  }
+
+
+  private static boolean isDelimiter( byte b ) {
+    return b == ' ' || b == '\t' || b == ':';
+  }
+
+
+  private void parseLine( byte b[], int start, int end ) {
+    if (start == end) return;
+
+    byte first = b[start];
+    if (first == '#') {
+      if (startsWith( b, start, end, "#label" )) {
+        try {
+          memory.parseLabelLine( new String( b, start, end - start ));
+        }
+        catch( Exception e ) {
+          error( e.getMessage(), b, start, end );
+        }
+      }
+      return;
+    }
+    if (first == ';') return;
+
+    // first two tokens: address and data
+    int p = start;
+    while( p < end && isDelimiter( b[p] )) p++;
+    int addr_start = p;
+    while( p < end && !isDelimiter( b[p] )) p++;
+    int addr_end = p;
+    while( p < end && isDelimiter( b[p] )) p++;
+    int data_start = p;
+    while( p < end && !isDelimiter( b[p] )) p++;
+    int data_end = p;
+
+    if (addr_start == addr_end || data_start == data_end) return;
+
+    long addr = parseHex( b, addr_start, addr_end );
+    if (addr < 0 || addr > Integer.MAX_VALUE) {
+      error( "illegal address", b, start, end );
+      return;
+    }
+
+    long value;
+    if (contains( b, data_start, data_end, (byte) 'X' )) {
+      value = hades.models.StdLogicVector.INVALID_XXX;
+    }
+    else {
+      value = parseHex( b, data_start, data_end );
+      if (value < 0) {
+        error( "illegal data", b, start, end );
+        return;
+      }
+    }
+    memory.setDataAt( (int) addr, value );
+    n_words++;
+  }
+
+
+  /**
+   * return the value of the hex number in b[start..end), or -1 if it
+   * is malformed or does not fit into 63 bits.
+   */
+  private static long parseHex( byte b[], int start, int end ) {
+    long value = 0;
+    for( int i=start; i < end; i++ ) {
+      int c = b[i];
+      int digit;
+      if      (c >= '0' && c <= '9') digit = c - '0';
+      else if (c >= 'a' && c <= 'f') digit = c - 'a' + 10;
+      else if (c >= 'A' && c <= 'F') digit = c - 'A' + 10;
+      else return -1;
+
+      if ((value >>> 59) != 0) return -1;  // overflow
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+
+  private static boolean contains( byte b[], int start, int end, byte c ) {
+    for( int i=start; i < end; i++ ) {
+      if (b[i] == c) return true;
+    }
+    return false;
+  }
+
+  private static boolean startsWith( byte b[], int start, int end, String s ) {
+    if (end - start < s.length()) return false;
+    for( int i=0; i < s.length(); i++ ) {
+      if (b[start+i] != s.charAt( i )) return false;
+    }
+    return true;
+  }
+
+
+  private void error( String msg, byte b[], int start, int end ) {
+    n_errors++;
+    memory.message( "-E- " + memory.toString() + ".parse: " + msg );
+    memory.message( "-E- on line " + n_lines + ": "
+                    + new String( b, start, end - start ));
+  }
+
+
+  public long getByteCount() {
+    return n_bytes;
+  }
+
+  public long getLineCount() {
+    return n_lines;
+  }
+
+  public long getWordCount() {
+    return n_words;
+  }
+
+  public long getErrorCount() {
+    return n_errors;
+  }
+
+  public long getElapsedNanos() {
+    return elapsed_nanos;
+  }
+
+  public double getBytesPerSecond() {
+    if (elapsed_nanos == 0) return 0.0;
+    return n_bytes * 1.0E9 / elapsed_nanos;
+  }
+
+
+  public String toString() {
+    return "loaded " + n_words + " words (" + n_lines + " lines, "
+           + n_bytes + " bytes) from " + name + " in "
+           + String.format( "%.1f ms, %.1f MB/s",
+                            elapsed_nanos * 1.0E-6,
+                            getBytesPerSecond() * 1.0E-6 );
+  }
+
+}
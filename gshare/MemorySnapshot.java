@@ -0,0 +1,416 @@
+/* MemorySnapshot.java - gshare.MemorySnapshot
+ *
+ * 17.10.26 - lock the files, keep the dirty bits if a save fails
+ * 17.10.26 - stream restore(), base checksum and sequence in deltas
+ * 17.10.26 - delta snapshots of the dirty pages (saveDelta)
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+import  java.nio.ByteBuffer;
+import  java.nio.ByteOrder;
+import  java.nio.channels.FileChannel;
+import  java.util.BitSet;
+import  java.util.zip.CRC32;
+
+
+/**
+ * MemorySnapshot - compact binary save/restore of GenericMemory contents,
+ * to checkpoint and restore predictor state (warm tables).
+ * <p>
+ * File layout, little-endian:
+ * <pre>
+ *   int   magic     'GMSN'
+ *   int   version   1
+ *   int   n_words
+ *   int   n_bits
+ *   long  checksum  CRC32 of the data section
+ *   long  data[n_words]
+ * </pre>
+ * Undefined words are stored as GenericMemory.UNDEFINED (-1).
+ * <p>
+ * saveDelta() writes only the pages marked dirty in the memory since
+ * the last save() or saveDelta(), and clears their dirty bits. A delta
+ * file has the same header with magic 'GMSD', extended by
+ * <pre>
+ *   long  base      the checksum of the base snapshot
+ *   int   sequence  1 for the first delta after the base, 2, ...
+ * </pre>
+ * followed by the pages:
+ * <pre>
+ *   int   page      the page number, in GenericMemory.DIRTY_PAGE_WORDS
+ *   long  data[DIRTY_PAGE_WORDS]   (less for the last page)
+ * </pre>
+ * and the checksum covers the page numbers and data. A checkpoint is
+ * restored by restore( memory, base, deltas ), which replays the deltas
+ * in the order they were written over the base image, and rejects
+ * deltas of another base or out of order.
+ */
+public class MemorySnapshot {
+
+  public final static int  MAGIC       = 0x4e534d47;   // "GMSN" in the file
+  public final static int  DELTA_MAGIC = 0x44534d47;   // "GMSD"
+  public final static int  VERSION     = 1;
+  public final static int  HEADER_SIZE = 24;
+  public final static int  DELTA_HEADER_SIZE = 36;
+
+  private final static int  CHUNK_WORDS = 1 << 17;     // 1 MByte buffers
+
+
+  /**
+   * write the contents of memory to file, and clear its dirty pages.
+   * If the file cannot be written, all pages are marked dirty again.
+   */
+  public static void save( GenericMemory memory, File file ) throws IOException {
+    int  n_words = memory.getSize();
+    long chunk[] = new long[ Math.min( CHUNK_WORDS, n_words ) ];
+    long checksum;
+
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    memory.clearDirtyPages();         // before reading, see clearDirtyPage()
+    try {
+      try {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer  buf     = ByteBuffer.allocateDirect( 8 * CHUNK_WORDS )
+                                        .order( ByteOrder.LITTLE_ENDIAN );
+        CRC32       crc     = new CRC32();
+
+        channel.lock();               // then truncate, see restore()
+        channel.truncate( 0 );
+        channel.position( HEADER_SIZE );
+        for( int i=0; i < n_words; i += CHUNK_WORDS ) {
+          int n = Math.min( CHUNK_WORDS, n_words - i );
+          memory.getWords( i, chunk, 0, n );
+          buf.clear();
+          buf.asLongBuffer().put( chunk, 0, n );
+          buf.limit( 8 * n );
+          crc.update( buf );
+          buf.flip();
+          while( buf.hasRemaining() ) channel.write( buf );
+        }
+
+        writeHeader( channel, newHeader( HEADER_SIZE, MAGIC, memory, crc ));
+        checksum = crc.getValue();
+      }
+      finally {
+        raf.close();
+      }
+    }
+    catch( IOException | RuntimeException e ) {
+      memory.markAllDirty();          // the pages are in no snapshot
+      throw e;
+    }
+    memory.snapshot_base     = checksum;
+    memory.snapshot_sequence = 0;
+  }
+
+
+  /**
+   * write the dirty pages of memory to file, and clear their dirty
+   * bits. The file is only valid on top of the base image and deltas
+   * written before it. Return the number of pages written. If the
+   * file cannot be written, the pages are marked dirty again.
+   */
+  public static int saveDelta( GenericMemory memory, File file ) throws IOException {
+    if (memory.snapshot_base < 0) {
+      throw new IOException( "no base snapshot saved or restored" );
+    }
+    int    n_words = memory.getSize();
+    int    page_words = GenericMemory.DIRTY_PAGE_WORDS;
+    long   page[] = new long[page_words];
+    int    n_pages = 0;
+    BitSet cleared = new BitSet( memory.getPageCount() );
+
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try {
+      try {
+        FileChannel channel = raf.getChannel();
+        int         record  = 4 + 8 * page_words;
+        int         n_buf   = Math.min( memory.getDirtyPageCount(), CHUNK_WORDS / page_words );
+        ByteBuffer  buf     = ByteBuffer.allocateDirect( record * Math.max( n_buf, 1 ))
+                                        .order( ByteOrder.LITTLE_ENDIAN );
+        CRC32       crc     = new CRC32();
+
+        channel.lock();               // then truncate, see restore()
+        channel.truncate( 0 );
+        channel.position( DELTA_HEADER_SIZE );
+        for( int p = memory.nextDirtyPage( 0 ); p >= 0; p = memory.nextDirtyPage( p+1 )) {
+          if (!memory.clearDirtyPage( p )) continue;
+          cleared.set( p );
+          int address = p << GenericMemory.DIRTY_PAGE_BITS;
+          int n       = Math.min( page_words, n_words - address );
+          memory.getWords( address, page, 0, n );
+          if (buf.remaining() < record) flush( channel, buf, crc );
+          buf.putInt( p );
+          buf.asLongBuffer().put( page, 0, n );
+          buf.position( buf.position() + 8 * n );
+          n_pages++;
+        }
+        flush( channel, buf, crc );
+
+        ByteBuffer header = newHeader( DELTA_HEADER_SIZE, DELTA_MAGIC, memory, crc );
+        header.putLong( memory.snapshot_base );
+        header.putInt( memory.snapshot_sequence + 1 );
+        writeHeader( channel, header );
+      }
+      finally {
+        raf.close();
+      }
+    }
+    catch( IOException | RuntimeException e ) {
+      for( int p = cleared.nextSetBit( 0 ); p >= 0; p = cleared.nextSetBit( p+1 )) {
+        memory.markDirty( p << GenericMemory.DIRTY_PAGE_BITS );
+      }
+      throw e;
+    }
+    memory.snapshot_sequence++;
+    return n_pages;
+  }
+
+
+  private static void flush( FileChannel channel, ByteBuffer buf, CRC32 crc )
+          throws IOException
+  {
+    buf.flip();
+    crc.update( buf );
+    buf.flip();
+    while( buf.hasRemaining() ) channel.write( buf );
+    buf.clear();
+  }
+
+
+  private static ByteBuffer newHeader( int size, int magic, GenericMemory memory,
+                                       CRC32 crc )
+  {
+    ByteBuffer header = ByteBuffer.allocate( size )
+                                  .order( ByteOrder.LITTLE_ENDIAN );
+    header.putInt( magic );
+    header.putInt( VERSION );
+    header.putInt( memory.getSize() );
+    header.putInt( memory.getBitsPerWord() );
+    header.putLong( crc.getValue() );
+    return header;
+  }
+
+
+  private static void writeHeader( FileChannel channel, ByteBuffer header )
+          throws IOException
+  {
+    header.flip();
+    channel.position( 0 );
+    while( header.hasRemaining() ) channel.write( header );
+  }
+
+
+  /**
+   * read a snapshot written by save() into memory. The size and word
+   * width must match those of memory, and the checksum must be valid;
+   * otherwise an IOException is thrown and memory is left unchanged.
+   */
+  public static void restore( GenericMemory memory, File file ) throws IOException {
+    restore( memory, file, new File[0] );
+  }
+
+
+  /**
+   * read the snapshot base and replay the deltas written after it, in
+   * order, into memory, and clear its dirty pages. The files are
+   * opened once and locked against writers. A first pass checks all of
+   * them, so that memory is only changed if the checksums are valid
+   * and the deltas belong to base, in order. The second pass copies
+   * the verified files, the base chunk by chunk and the deltas page by
+   * page, without a heap copy of the whole memory.
+   */
+  public static void restore( GenericMemory memory, File base, File deltas[] )
+         throws IOException
+  {
+    FileChannel channels[] = new FileChannel[deltas.length+1];
+    try {
+      for( int i=0; i <= deltas.length; i++ ) {
+        channels[i] = new FileInputStream( (i == 0) ? base : deltas[i-1] ).getChannel();
+        channels[i].lock( 0, Long.MAX_VALUE, true );
+      }
+
+      long checksum = readBase( memory, channels[0], base, false );
+      for( int i=0; i < deltas.length; i++ ) {
+        readDelta( memory, channels[i+1], deltas[i], checksum, i+1, false );
+      }
+
+      readBase( memory, channels[0], base, true );
+      for( int i=0; i < deltas.length; i++ ) {
+        readDelta( memory, channels[i+1], deltas[i], checksum, i+1, true );
+      }
+      memory.clearDirtyPages();
+      memory.snapshot_base     = checksum;
+      memory.snapshot_sequence = deltas.length;
+    }
+    finally {
+      for( int i=0; i <= deltas.length; i++ ) {
+        if (channels[i] != null) channels[i].close();
+      }
+    }
+  }
+
+
+  /**
+   * check the base file and return its checksum, or copy the already
+   * checked file into memory if apply is set.
+   */
+  private static long readBase( GenericMemory memory, FileChannel channel,
+                                File file, boolean apply )
+          throws IOException
+  {
+    channel.position( 0 );
+    long       checksum = readHeader( channel, MAGIC, memory, file );
+    int        n_words  = memory.getSize();
+
+    long       chunk[] = new long[ Math.min( CHUNK_WORDS, n_words ) ];
+    ByteBuffer buf     = ByteBuffer.allocateDirect( 8 * CHUNK_WORDS )
+                                   .order( ByteOrder.LITTLE_ENDIAN );
+    CRC32      crc     = new CRC32();
+    for( int i=0; i < n_words; i += CHUNK_WORDS ) {
+      int n = Math.min( CHUNK_WORDS, n_words - i );
+      buf.clear();
+      buf.limit( 8 * n );
+      readFully( channel, buf );
+      buf.flip();
+      if (apply) {
+        buf.asLongBuffer().get( chunk, 0, n );
+        memory.setWords( i, chunk, 0, n );
+      }
+      else crc.update( buf );
+    }
+    if (!apply && crc.getValue() != checksum) {
+      throw new IOException( "snapshot checksum mismatch: " + file );
+    }
+    return checksum;
+  }
+
+
+  /**
+   * check a delta file against the base checksum and its expected
+   * sequence number, or copy the pages of the already checked file
+   * into memory if apply is set.
+   */
+  private static void readDelta( GenericMemory memory, FileChannel channel,
+                                 File file, long base_checksum, int sequence,
+                                 boolean apply )
+          throws IOException
+  {
+    try {
+      channel.position( 0 );
+      long checksum   = readHeader( channel, DELTA_MAGIC, memory, file );
+      int  n_words    = memory.getSize();
+      int  page_words = GenericMemory.DIRTY_PAGE_WORDS;
+
+      ByteBuffer header = ByteBuffer.allocate( DELTA_HEADER_SIZE - HEADER_SIZE )
+                                    .order( ByteOrder.LITTLE_ENDIAN );
+      readFully( channel, header );
+      header.flip();
+      if (header.getLong() != base_checksum) {
+        throw new IOException( "delta snapshot " + file
+                               + " was not written on top of this base" );
+      }
+      int n = header.getInt();
+      if (n != sequence) {
+        throw new IOException( "delta snapshot " + file + " is number " + n
+                               + ", expected " + sequence );
+      }
+
+      long       page[] = new long[page_words];
+      ByteBuffer buf    = ByteBuffer.allocateDirect( 8 * CHUNK_WORDS )
+                                    .order( ByteOrder.LITTLE_ENDIAN );
+      CRC32      crc    = new CRC32();
+      buf.flip();
+      while( fill( channel, buf, 4, crc ) || buf.hasRemaining() ) {
+        int p       = buf.getInt();
+        int address = p << GenericMemory.DIRTY_PAGE_BITS;
+        if (p < 0 || p >= memory.getPageCount()) {
+          throw new IOException( "illegal page " + p + " in " + file );
+        }
+        n = Math.min( page_words, n_words - address );
+        fill( channel, buf, 8 * n, crc );
+        buf.asLongBuffer().get( page, 0, n );
+        buf.position( buf.position() + 8 * n );
+        if (apply) memory.setWords( address, page, 0, n );
+      }
+      if (!apply && crc.getValue() != checksum) {
+        throw new IOException( "snapshot checksum mismatch: " + file );
+      }
+    }
+    catch( java.nio.BufferUnderflowException e ) {
+      throw new EOFException( "truncated memory snapshot" );
+    }
+  }
+
+
+  /**
+   * make sure buf has n bytes remaining, reading from channel and
+   * adding the bytes read to crc. Return false at the end of the file.
+   */
+  private static boolean fill( FileChannel channel, ByteBuffer buf, int n,
+                               CRC32 crc )
+          throws IOException
+  {
+    if (buf.remaining() >= n) return true;
+    buf.compact();
+    while( buf.position() < n ) {
+      int start = buf.position();
+      if (channel.read( buf ) < 0) break;
+      ByteBuffer bytes = buf.duplicate();
+      bytes.flip();
+      bytes.position( start );
+      crc.update( bytes );
+    }
+    buf.flip();
+    return buf.remaining() >= n;
+  }
+
+
+  /**
+   * read and check the header, and return the checksum.
+   */
+  private static long readHeader( FileChannel channel, int expected_magic,
+                                  GenericMemory memory, File file )
+          throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE )
+                                  .order( ByteOrder.LITTLE_ENDIAN );
+    readFully( channel, header );
+    header.flip();
+    int  magic    = header.getInt();
+    int  version  = header.getInt();
+    int  n_words  = header.getInt();
+    int  n_bits   = header.getInt();
+    long checksum = header.getLong();
+
+    if (magic != expected_magic) {
+      throw new IOException( ((expected_magic == MAGIC) ? "not a memory snapshot: "
+                                                        : "not a delta snapshot: ")
+                             + file );
+    }
+    if (version != VERSION) {
+      throw new IOException( "unsupported snapshot version " + version );
+    }
+    if (n_words != memory.getSize() || n_bits != memory.getBitsPerWord()) {
+      throw new IOException( "snapshot is " + n_words + "x" + n_bits
+                             + ", memory is " + memory.getSize() + "x"
+                             + memory.getBitsPerWord() );
+    }
+    return checksum;
+  }
+
+
+  private static void readFully( FileChannel channel, ByteBuffer buf )
+          throws IOException
+  {
+    while( buf.hasRemaining() ) {
+      if (channel.read( buf ) < 0) {
+        throw new EOFException( "truncated memory snapshot" );
+      }
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+/* PackedStorage.java - gshare.PackedStorage
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+
+/**
+ * PackedStorage - stores n_bits wide words contiguously in a long[],
+ * instead of one long per word. Each word takes n_bits+1 bits: the extra
+ * bit marks GenericMemory.UNDEFINED. For the 18-bit words of the gshare
+ * table, this needs 19 instead of 64 bits per word.
+ */
+public class PackedStorage implements WordStorage {
+
+  protected int    n_words, n_bits;
+  protected int    width;        // bits per stored word, n_bits+1
+  protected long   value_mask;   // n_bits ones
+  protected long   word_mask;    // width ones
+  protected long   undefined;    // the stored pattern for UNDEFINED
+  protected long   bits[];
+
+
+  public PackedStorage( int n_words, int n_bits ) {
+    if (n_bits < 1 || n_bits > 63) {
+      throw new IllegalArgumentException( "illegal word width: " + n_bits );
+    }
+    this.n_words    = n_words;
+    this.n_bits     = n_bits;
+    this.width      = n_bits + 1;
+    this.value_mask = (1L << n_bits) - 1;
+    this.word_mask  = (width == 64) ? -1L : (1L << width) - 1;
+    this.undefined  = 1L << n_bits;
+    this.bits       = new long[ (int) (((long) n_words * width + 63) >>> 6) + 1 ];
+  }
+
+
+  public int size() {
+    return n_words;
+  }
+
+
+  public long get( int address ) {
+    long bitpos = (long) address * width;
+    int  index  = (int) (bitpos >>> 6);
+    int  offset = (int) (bitpos & 63);
+
+    long w = bits[index] >>> offset;
+    if (offset + width > 64) {
+      w |= bits[index+1] << (64 - offset);
+    }
+    w &= word_mask;
+    return (w == undefined) ? GenericMemory.UNDEFINED : w;
+  }
+
+
+  public void set( int address, long value ) {
+    long w = (value == GenericMemory.UNDEFINED) ? undefined : (value & value_mask);
+
+    long bitpos = (long) address * width;
+    int  index  = (int) (bitpos >>> 6);
+    int  offset = (int) (bitpos & 63);
+
+    bits[index] = (bits[index] & ~(word_mask << offset)) | (w << offset);
+    if (offset + width > 64) {
+      int shift = 64 - offset;
+      bits[index+1] = (bits[index+1] & ~(word_mask >>> shift)) | (w >>> shift);
+    }
+  }
+
+
+  public void fill( long value ) {
+    if (value == 0) {
+      java.util.Arrays.fill( bits, 0L );
+    }
+    else {
+      for( int i=0; i < n_words; i++ ) set( i, value );
+    }
+  }
+
+
+  public void getWords( int address, long dst[], int offset, int length ) {
+    for( int i=0; i < length; i++ ) {
+      dst[offset+i] = get( address+i );
+    }
+  }
+
+  public void setWords( int address, long src[], int offset, int length ) {
+    for( int i=0; i < length; i++ ) {
+      set( address+i, src[offset+i] );
+    }
+  }
+
+
+  public void close() {
+  }
+
+
+  public String toString() {
+    return "packed " + n_words + "x" + n_bits + " (" + (8L * bits.length)
+           + " bytes)";
+  }
+
+}
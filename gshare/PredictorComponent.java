@@ -0,0 +1,452 @@
+/* PredictorComponent.java - gshare.PredictorComponent
+ *
+ * 17.10.26 - first version, ports and strobe decoding taken from gshare
+ * 17.10.26 - input sensitivity filter, unchanged outputs not scheduled
+ */
+
+package gshare;
+
+import  hades.models.*;
+import  hades.signals.*;
+import  hades.simulator.*;
+import  hades.symbols.*;
+
+import  jfig.utils.SetupManager;
+
+
+/**
+ * PredictorComponent - the Hades side of a branch predictor backed by
+ * a GenericMemory: the ports and symbol of the gshare "Prediction Table",
+ * and the decoding of its control inputs.
+ * <p>
+ * At each evaluate() with R='1', an nWE strobe (rising CLK and P edges)
+ * is passed to strobe(), then the PCF lookup to fetch(), which sets
+ * out_VP and out_PRED. R='0' drives VP and PRED to 0, and calls
+ * resetPredictor() at a rising CLK edge. Subclasses supply the port
+ * widths and these hooks, and the BranchPredictor methods for headless
+ * runs.
+ * <p>
+ * The outputs only depend on PCF, R and the table, which changes at
+ * rising CLK edges. So with event filtering (the default, see
+ * setEventFiltering()), an evaluate() without a rising CLK edge and
+ * with the same PCF and R as the last one does no work; changes of
+ * PCD, DESTCD, DZ, nWE and P alone are ignored until the next edge.
+ * VP and PRED are only scheduled when they differ from the last values
+ * driven. Changes to the table from outside the simulation, as from
+ * the memory editor, show up at the next PCF change or clock edge.
+ * The event counters are printed by printEventReport().
+ */
+public abstract class PredictorComponent extends GenericMemory
+                                         implements BranchPredictor {
+
+  protected  PortStdLogicVector  port_PCF, port_PCD, port_DESTCD;
+  protected  PortStdLogicVector  port_VP, port_DEST, port_DZ,port_nWE;
+  protected  PortStdLogic1164    port_CLK,port_reset,port_previ;
+  public final static double  t_access       = 30.0E-9; 
+  public final static double  t_tristate     =  5.0E-9; 
+  public final static double  t_undefined    =  6.0E-9; 
+  public final static double  t_setup        =  6.0E-9; 
+  public final static double  t_min_we_cycle =  6.0E-9; 
+
+  /* the outputs of the last fetch() */
+  protected  StdLogicVector      out_VP, out_PRED;
+
+  /* sensitivity filter: the inputs of the last evaluate() that did
+   * work, and the last values scheduled on VP and PRED
+   */
+  protected  boolean             filter_events;
+  protected  long                last_pcf;
+  protected  int                 last_r;
+  protected  StdLogicVector      driven_VP, driven_PRED;
+
+  /* event counters, see printEventReport() */
+  protected  long                n_evaluate, n_filtered, n_filtered_outputs;
+  protected  long                n_scheduled, n_suppressed;
+
+
+  public PredictorComponent() {
+    super();
+    constructPorts();
+    filter_events = SetupManager.getBoolean(
+                      "Hades.PredictorComponent.FilterEvents", true );
+    last_r = -1;
+  }
+
+
+  /**
+   * with filtering, evaluate() skips irrelevant input changes and
+   * does not schedule unchanged outputs; without, every evaluate()
+   * schedules VP and PRED, as the original table did.
+   */
+  public void setEventFiltering( boolean b ) {
+    filter_events = b;
+    last_r        = -1;
+    driven_VP     = driven_PRED = null;
+  }
+
+  public boolean getEventFiltering() {
+    return filter_events;
+  }
+
+
+  /** width of the PCF and PCD word addresses */
+  protected abstract int getPCWidth();
+
+  /** width of DESTCD, the target word address */
+  protected abstract int getTargetWidth();
+
+  /** width of VP, the prediction counter */
+  protected abstract int getVPWidth();
+
+  /**
+   * handle an nWE strobe for the branch at word address pcd:
+   * 3 = taken to destcd, 2 = not taken, 1 = invalidate.
+   */
+  protected abstract void strobe( int nWE, long pcd, long destcd );
+
+  /**
+   * look up the branch at word address pcf, and set out_VP and out_PRED.
+   */
+  protected abstract void fetch( long pcf );
+
+  /**
+   * R='0' at a rising CLK edge.
+   */
+  protected abstract void resetPredictor();
+
+
+  protected void constructPorts() {
+    int  npc  = Math.max( 1, getPCWidth() );
+    port_PCF   = new PortStdLogicVector( this, "PCF", Port.IN,  null, npc );
+    port_PCD   = new PortStdLogicVector( this, "PCD", Port.IN,  null, npc );
+    port_DESTCD   = new PortStdLogicVector( this, "DESTCD", Port.IN,  null, Math.max( 1, getTargetWidth() ));
+
+    port_VP   = new PortStdLogicVector( this, "VP", Port.OUT, null, Math.max( 1, getVPWidth() ));
+    port_DEST   = new PortStdLogicVector( this, "PRED", Port.OUT, null, getPredWidth() );
+    port_DZ   = new PortStdLogicVector( this, "DZ", Port.IN,  null, n_bits );
+
+    port_nWE  = new PortStdLogicVector(this, "nWE", Port.IN, null,2 );
+    port_CLK  = new PortStdLogic1164(   this, "CLK", Port.IN, null );
+    port_reset = new PortStdLogic1164(this,"R", Port.IN, null);
+    port_previ = new PortStdLogic1164(this,"P", Port.IN, null);
+    ports = new Port[10];
+    ports[0] = port_PCF;
+    ports[1] = port_PCD;
+    ports[2] = port_DESTCD;
+    ports[3] = port_VP;
+    ports[4] = port_DEST;
+    ports[5] = port_DZ;
+    ports[6] = port_nWE;
+    ports[7] = port_CLK;
+    ports[8]=port_reset;
+    ports[9]=port_previ;
+  }
+ 
+  public boolean canChangeSize() {
+    return !isConnected();
+  }
+
+
+  public void elaborate( Object arg ) {
+    if (debug) message( toString() + ".elaborate()" ); 
+    simulator = parent.getSimulator();
+
+    last_r    = -1;
+    driven_VP = vector_VP_UUU;
+    driven_PRED = vector_PRED_UUU;
+
+    if (simulator == null) return;
+    if (port_VP.getSignal() != null) {
+      simulator.scheduleEvent( 
+        new SimEvent(port_VP.getSignal(), 0.0, vector_VP_UUU, port_VP));
+    }
+    if (port_DEST.getSignal() != null) {
+      simulator.scheduleEvent( 
+        new SimEvent(port_DEST.getSignal(), 0.0, vector_PRED_UUU, port_DEST));
+    }
+
+  }
+
+
+  public void evaluate( Object arg ) {
+    if (debug) System.err.println( toString() + ".evaluate()" );
+    n_evaluate++;
+
+    double          time        = simulator.getSimTime() + t_access;
+
+    StdLogicVector  pcf   = port_PCF.getVectorOrUUU();
+    StdLogicVector  pcd   = port_PCD.getVectorOrUUU();
+    StdLogicVector  destdc   = port_DESTCD.getVectorOrUUU();
+    StdLogic1164 reset = port_reset.getValueOrU();
+
+    StdLogicVector    value_nWE   = port_nWE.getVectorOrUUU();
+    StdLogic1164    value_CLK   = port_CLK.getValueOrU();
+
+    if (!value_CLK.is_01()) {
+      message( "-W- " + toString() +
+               "CLK undefined: data loss would occur! Ignoring..." );
+    }
+    else if (pcd.has_UXZ()) { 
+      message( "-W- " + toString() +
+               "AZ address undefined: data loss would occur! Ignoring..." );
+    }
+    else {
+        // decode the control inputs once, as primitives
+        int  r   = reset.getValue();                 // 2 = '0', 3 = '1'
+        int  nWE = value_nWE.has_UXZ() ? 0 : (int) value_nWE.getValue();
+
+        SignalStdLogic1164  clk = (SignalStdLogic1164) port_CLK.getSignal();
+        SignalStdLogic1164  previ = (SignalStdLogic1164) port_previ.getSignal();
+        boolean rising = clk != null && clk.hasRisingEdge();
+
+        // sensitivity: only a rising CLK edge or a change of PCF or R
+        // can change the outputs
+        long pcf_value = pcf.has_UXZ() ? -1 : pcf.getValue();
+        if (filter_events && !rising && r == last_r && pcf_value == last_pcf) {
+            n_filtered++;
+            if (r == 2 || r == 3) n_filtered_outputs += 2;
+            timeStep( time );
+            return;
+        }
+        last_r   = r;
+        last_pcf = pcf_value;
+
+        if (r == 2){
+
+            if (rising) {
+                resetPredictor();
+            }
+
+            driveOutputs( vector_VP[0], vector_PRED_000, time + t_access );
+        }
+        else if(r == 3){
+
+            if (nWE != 0 && rising && previ != null && previ.hasRisingEdge()) {
+                strobe( nWE, pcd.getValue(), destdc.getValue() );
+            }
+            
+            if (pcf_value < 0) {
+                out_VP   = vector_VP_UUU;
+                out_PRED = vector_PRED_UUU;
+            }
+            else {
+                fetch( pcf_value );
+            }
+            driveOutputs( out_VP, out_PRED, time + t_access );
+        }
+    }
+
+    timeStep( time );
+  }
+
+
+  /**
+   * schedule VP and PRED, with filtering only if they differ from the
+   * values driven last. The output vectors are shared and cached per
+   * value, so comparing references finds nearly all repeated values.
+   */
+  protected void driveOutputs( StdLogicVector vp, StdLogicVector pred,
+                               double time )
+  {
+    if (!filter_events || vp != driven_VP) {
+      schedule( port_VP, vp, time );
+      driven_VP = vp;
+      n_scheduled++;
+    }
+    else n_suppressed++;
+
+    if (!filter_events || pred != driven_PRED) {
+      schedule( port_DEST, pred, time );
+      driven_PRED = pred;
+      n_scheduled++;
+    }
+    else n_suppressed++;
+  }
+
+
+  public long getEvaluateCount()    { return n_evaluate; }
+  public long getFilteredCount()    { return n_filtered; }
+  public long getScheduledEvents()  { return n_scheduled; }
+  public long getSuppressedEvents() { return n_suppressed; }
+
+  /**
+   * the events the unfiltered evaluate() would have scheduled: VP and
+   * PRED at every evaluate() with R defined that got past the checks.
+   */
+  public long getUnfilteredEvents() {
+    return n_filtered_outputs + n_scheduled + n_suppressed;
+  }
+
+  public void resetEventCounts() {
+    n_evaluate = n_filtered = n_filtered_outputs = 0;
+    n_scheduled = n_suppressed = 0;
+  }
+
+  public void printEventReport( java.io.PrintStream ps ) {
+    long before = getUnfilteredEvents();
+    ps.println( toString() + ": " + n_evaluate + " evaluate() calls, "
+                + n_filtered + " filtered" );
+    ps.println( "    events scheduled " + n_scheduled + " of " + before
+                + String.format( " (%.1f %%), %d unchanged outputs suppressed",
+                    100.0 * n_scheduled / Math.max( 1, before ), n_suppressed ));
+  }
+
+
+  /**
+   * no speculative state by default.
+   */
+  public void squash() {
+  }
+
+
+  /**
+   * called at the end of each evaluate(), for batched listeners.
+   */
+  protected void timeStep( double time ) {
+    listenerTimeStep( time );
+  }
+
+
+  /* Preallocated output values. The simulator keeps references to the
+   * scheduled values, so these vectors must never be modified.
+   */
+  protected  StdLogicVector    vector_VP[];
+  protected  StdLogicVector    vector_VP_UUU, vector_PRED_UUU, vector_PRED_000;
+  protected  StdLogicVector    vector_PRED[];
+  protected  long              vector_PRED_dest[];
+
+  protected final static int   PRED_CACHE_BITS = 12;
+
+  protected void constructStandardValues() {
+    super.constructStandardValues();
+
+    int nvp = Math.max( 1, getVPWidth() );
+    int npred = getPredWidth();
+    vector_VP = new StdLogicVector[1 << nvp];
+    for( int i=0; i < vector_VP.length; i++ ) {
+      vector_VP[i] = new StdLogicVector( nvp, i );
+    }
+    vector_VP_UUU   = new StdLogicVector( nvp, Const1164.__U );
+    vector_PRED_UUU = new StdLogicVector( npred, Const1164.__U );
+    vector_PRED_000 = new StdLogicVector( npred, 0 );
+    vector_PRED      = new StdLogicVector[1 << PRED_CACHE_BITS];
+    vector_PRED_dest = new long[1 << PRED_CACHE_BITS];
+  }
+
+
+  /**
+   * PRED is the target field shifted left by two, at least 32 bits.
+   */
+  protected int getPredWidth() {
+    return Math.max( 32, getTargetWidth() + 2 );
+  }
+
+
+  /**
+   * return the PRED vector for the target field dest. Vectors are cached
+   * direct-mapped by the low PRED_CACHE_BITS of dest, so wide targets
+   * only allocate on a cache conflict.
+   */
+  protected StdLogicVector getPredVector( long dest ) {
+    int i = (int) (dest & ((1 << PRED_CACHE_BITS) - 1));
+    StdLogicVector v = vector_PRED[i];
+    if (v == null || vector_PRED_dest[i] != dest) {
+      v = new StdLogicVector( getPredWidth(), dest << 2 );
+      vector_PRED[i]      = v;
+      vector_PRED_dest[i] = dest;
+    }
+    return v;
+  }
+
+
+  public void schedule( Port port, Object value, double time ) {
+    Signal signal = port.getSignal();
+    if (signal != null) {
+      simulator.scheduleEvent(  
+        new SimEvent( signal, time, value, port ));
+    }
+  }
+
+
+  /**
+   * the two lines of the symbol label.
+   */
+  protected String[] getSymbolLabel() {
+    return new String[] { "Prediction", "Table" };
+  }
+  
+  @Override
+    public boolean needsDynamicSymbol() {
+        return true;
+    }
+
+    @Override
+    public void constructDynamicSymbol() {
+        symbol = new Symbol();
+        symbol.setParent(this);
+
+        //retângulo cinza
+        BboxRectangle bbr = new BboxRectangle();
+        bbr.initialize("0 0 4200 4200");
+
+        //retangulo do componente
+        Rectangle rec = new Rectangle();
+        rec.initialize("0 0 4200 4200");
+
+        //símbolo para portas de fios
+        BusPortSymbol portsymbol0 = new BusPortSymbol();
+        portsymbol0.initialize("0 1200 PCF");
+        
+        BusPortSymbol portsymbol3 = new BusPortSymbol();
+        portsymbol3.initialize("3600 0 PRED");
+        
+        
+        BusPortSymbol portsymbol4 = new BusPortSymbol();
+        portsymbol4.initialize("2400 0 DESTCD");
+
+        BusPortSymbol portsymbol5 = new BusPortSymbol();
+        portsymbol5.initialize("0 3000 PCD");
+
+        BusPortSymbol portsymbol2 = new BusPortSymbol();
+        portsymbol2.initialize("4200 3600 VP");
+        
+        //sínbolo para portas de barramentos
+        
+        BusPortSymbol portsymbol6 = new BusPortSymbol();
+        portsymbol6.initialize("1800 4200 nWE");
+        
+        PortSymbol portsymbol1 = new PortSymbol();
+        portsymbol1.initialize("600 4200 CLK");
+        
+        PortSymbol portsymbol7 = new PortSymbol();
+        portsymbol7.initialize("1200 4200 R");
+        PortSymbol portsymbol9 = new PortSymbol();
+        portsymbol9.initialize("1200 4200 H");// previ estado de desvio
+        
+
+        String label[] = getSymbolLabel();
+        FatLabel label_comp_name = new FatLabel();
+        FatLabel label_comp_name_1 = new FatLabel();
+        label_comp_name_1.initialize("2100 2000 2 " + label[0]);
+        label_comp_name.initialize("2100 2800 2 " + label[1]);
+        
+        
+        //adiciona os símbolos para o "desenhista" do programa
+        symbol.addMember(bbr);
+        symbol.addMember(rec);
+        symbol.addMember(label_comp_name_1);
+        symbol.addMember(label_comp_name);
+        symbol.addMember(portsymbol0);
+        symbol.addMember(portsymbol1);
+        symbol.addMember(portsymbol2);
+        symbol.addMember(portsymbol3);
+        symbol.addMember(portsymbol4);
+        symbol.addMember(portsymbol5);
+        symbol.addMember(portsymbol6);
+        symbol.addMember(portsymbol7);
+        symbol.addMember(portsymbol9);
+        
+        
+    }
+    
+}
@@ -0,0 +1,257 @@
+/* PredictorMetrics.java - gshare.PredictorMetrics
+ *
+ * 17.10.26 - unregistered by the components' dispose()
+ * 17.10.26 - long line counters, misprediction rate per resolved branch
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.PrintStream;
+import  java.lang.management.ManagementFactory;
+import  javax.management.MBeanServer;
+import  javax.management.ObjectName;
+
+
+/**
+ * PredictorMetrics - always-on counters of a prediction table: lookups,
+ * tag hits and misses, hits per way of a set-associative table,
+ * resolved branches and their mispredictions, and per-line writes and
+ * conflict evictions (a valid line overwritten with a different tag).
+ * <p>
+ * The counters are plain primitive fields and arrays, updated only by
+ * the simulation thread, so counting costs an increment on the hot path.
+ * Readers on other threads (JMX, the periodic dump) may see slightly
+ * stale values.
+ */
+public class PredictorMetrics implements PredictorMetricsMBean {
+
+  protected long  lookups, tag_hits, resolves, mispredictions;
+  protected long  writes, evictions;
+  protected long  line_writes[], line_evictions[];
+  protected long  way_hits[];
+
+  protected ObjectName          jmx_name;
+  protected java.util.Timer     dump_timer;
+
+
+  public PredictorMetrics( int n_lines ) {
+    resize( n_lines, 1 );
+  }
+
+
+  /**
+   * reallocate the per-line and per-way counters; clears all counters.
+   */
+  public void resize( int n_lines, int ways ) {
+    line_writes    = new long[n_lines];
+    line_evictions = new long[n_lines];
+    way_hits       = new long[ways];
+    reset();
+  }
+
+  public void reset() {
+    lookups = tag_hits = resolves = mispredictions = 0;
+    writes  = evictions = 0;
+    java.util.Arrays.fill( line_writes, 0 );
+    java.util.Arrays.fill( line_evictions, 0 );
+    java.util.Arrays.fill( way_hits, 0 );
+  }
+
+
+  /* hot path */
+
+  /**
+   * count a lookup that hit in way, or missed for way < 0.
+   */
+  public final void lookup( int way ) {
+    lookups++;
+    if (way >= 0) {
+      tag_hits++;
+      way_hits[way]++;
+    }
+  }
+
+  /**
+   * count a resolved branch, and a misprediction if it was wrong.
+   */
+  public final void resolve( boolean mispredicted ) {
+    resolves++;
+    if (mispredicted) mispredictions++;
+  }
+
+  public final void write( int line, boolean eviction ) {
+    writes++;
+    line_writes[line]++;
+    if (eviction) {
+      evictions++;
+      line_evictions[line]++;
+    }
+  }
+
+
+  /* MBean */
+
+  public long getLookups()        { return lookups; }
+  public long getTagHits()        { return tag_hits; }
+  public long getTagMisses()      { return lookups - tag_hits; }
+  public long getResolves()       { return resolves; }
+  public long getMispredictions() { return mispredictions; }
+  public long getWrites()         { return writes; }
+  public long getEvictions()      { return evictions; }
+
+  public double getHitRate() {
+    return (lookups == 0) ? 0.0 : (double) tag_hits / lookups;
+  }
+
+  public double getTagMissRate() {
+    return (lookups == 0) ? 0.0 : (double) (lookups - tag_hits) / lookups;
+  }
+
+  /**
+   * mispredictions per resolved branch; lookups are counted at fetch,
+   * which may run ahead of the resolves.
+   */
+  public double getMispredictionRate() {
+    return (resolves == 0) ? 0.0 : (double) mispredictions / resolves;
+  }
+
+  /**
+   * fraction of table writes that evicted another branch.
+   */
+  public double getAliasingRate() {
+    return (writes == 0) ? 0.0 : (double) evictions / writes;
+  }
+
+  public int getLines() {
+    return line_writes.length;
+  }
+
+  public int getLinesWritten() {
+    int n = 0;
+    for( int i=0; i < line_writes.length; i++ ) {
+      if (line_writes[i] != 0) n++;
+    }
+    return n;
+  }
+
+  public int getWays() {
+    return way_hits.length;
+  }
+
+  public long[] getWayHits() {
+    return way_hits.clone();
+  }
+
+  public long getLineWrites( int line ) {
+    return line_writes[line];
+  }
+
+  public long getLineEvictions( int line ) {
+    return line_evictions[line];
+  }
+
+
+  public String getHotLines( int n ) {
+    long w[]    = line_writes.clone();
+    StringBuffer sb = new StringBuffer();
+    for( int k=0; k < n; k++ ) {
+      int best = -1;
+      for( int i=0; i < w.length; i++ ) {
+        if (w[i] > 0 && (best < 0 || w[i] > w[best])) best = i;
+      }
+      if (best < 0) break;
+      if (k > 0) sb.append( ' ' );
+      sb.append( Integer.toHexString( best ) ).append( ':' )
+        .append( w[best] ).append( '/' ).append( line_evictions[best] );
+      w[best] = 0;
+    }
+    return sb.toString();
+  }
+
+
+  public String toString() {
+    return "lookups=" + lookups
+         + " hits=" + tag_hits
+         + " misses=" + (lookups - tag_hits)
+         + " resolves=" + resolves
+         + " mispredictions=" + mispredictions
+         + " writes=" + writes
+         + " evictions=" + evictions
+         + String.format( " hit_rate=%.4f aliasing=%.4f", getHitRate(),
+                          getAliasingRate() );
+  }
+
+  public void print( PrintStream ps ) {
+    ps.println( "lookups          " + lookups );
+    ps.println( "tag hits         " + tag_hits );
+    ps.println( "tag misses       " + (lookups - tag_hits) );
+    if (way_hits.length > 1) {
+      StringBuffer sb = new StringBuffer();
+      for( int w=0; w < way_hits.length; w++ ) {
+        sb.append( ' ' ).append( way_hits[w] );
+      }
+      ps.println( "way hits        " + sb );
+    }
+    ps.println( "resolves         " + resolves );
+    ps.println( "mispredictions   " + mispredictions );
+    ps.println( "table writes     " + writes );
+    ps.println( "evictions        " + evictions );
+    ps.println( "lines written    " + getLinesWritten() + " of " + getLines() );
+    ps.println( "hot lines        " + getHotLines( 8 ));
+  }
+
+
+  /**
+   * register with the platform MBean server as
+   * gshare:type=PredictorMetrics,name=<name>, replacing an older
+   * registration under the same name.
+   */
+  public void register( String name ) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      unregister();
+      jmx_name = new ObjectName( "gshare:type=PredictorMetrics,name="
+                                 + ObjectName.quote( name ));
+      if (server.isRegistered( jmx_name )) server.unregisterMBean( jmx_name );
+      server.registerMBean( this, jmx_name );
+    }
+    catch( Exception e ) {
+      System.err.println( "-W- PredictorMetrics: JMX registration failed: "
+                          + e );
+      jmx_name = null;
+    }
+  }
+
+  public void unregister() {
+    if (jmx_name == null) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean( jmx_name );
+    }
+    catch( Exception e ) { }
+    jmx_name = null;
+  }
+
+
+  /**
+   * print the counters to ps every period milliseconds,
+   * or stop printing for period <= 0.
+   */
+  public void setDumpInterval( final String label, long period,
+                               final PrintStream ps )
+  {
+    if (dump_timer != null) {
+      dump_timer.cancel();
+      dump_timer = null;
+    }
+    if (period <= 0) return;
+
+    dump_timer = new java.util.Timer( "PredictorMetrics " + label, true );
+    dump_timer.schedule( new java.util.TimerTask() {
+        public void run() {
+          ps.println( "-I- " + label + ": " + PredictorMetrics.this );
+        }
+      }, period, period );
+  }
+
+}
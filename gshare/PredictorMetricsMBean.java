@@ -0,0 +1,39 @@
+/* PredictorMetricsMBean.java - gshare.PredictorMetricsMBean
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+
+/**
+ * PredictorMetricsMBean - the JMX view of PredictorMetrics.
+ */
+public interface PredictorMetricsMBean {
+
+  public long   getLookups();
+  public long   getTagHits();
+  public long   getTagMisses();
+  public long   getResolves();
+  public long   getMispredictions();
+  public long   getWrites();
+  public long   getEvictions();
+
+  public double getHitRate();
+  public double getTagMissRate();
+  public double getMispredictionRate();
+  public double getAliasingRate();
+
+  public int    getWays();
+  public long[] getWayHits();
+  public int    getLines();
+  public int    getLinesWritten();
+
+  /**
+   * the n most written lines, as "line:writes/evictions" pairs.
+   */
+  public String getHotLines( int n );
+
+  public void   reset();
+
+}
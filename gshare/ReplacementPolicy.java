@@ -0,0 +1,131 @@
+/* ReplacementPolicy.java - gshare.ReplacementPolicy
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+
+/**
+ * ReplacementPolicy - victim selection for the ways of a set-associative
+ * table: true LRU (an age stamp per way), tree pseudo-LRU (ways-1 bits
+ * per set) or random (a fixed-seed xorshift, so runs are repeatable).
+ * Ways must be a power of two, at most 64.
+ */
+public class ReplacementPolicy {
+
+  public final static int  LRU    = 0;
+  public final static int  PLRU   = 1;
+  public final static int  RANDOM = 2;
+
+  public final static String  names[] = { "lru", "plru", "random" };
+
+  protected int     policy;
+  protected int     n_sets, ways, way_bits;
+  protected long    stamps[];     // LRU: last use per set*ways+way
+  protected long    clock;
+  protected long    tree[];       // PLRU: one bit per inner node, per set
+  protected long    seed;
+
+
+  public ReplacementPolicy( int policy, int n_sets, int ways ) {
+    this.policy = policy;
+    this.n_sets = n_sets;
+    this.ways   = ways;
+    for( way_bits=0; (1 << way_bits) < ways; way_bits++ ) ;
+    reset();
+  }
+
+
+  /**
+   * return the policy constant for name (lru, plru or random), or -1.
+   */
+  public static int parse( String name ) {
+    for( int i=0; i < names.length; i++ ) {
+      if (names[i].equalsIgnoreCase( name )) return i;
+    }
+    return -1;
+  }
+
+  public int getPolicy() {
+    return policy;
+  }
+
+  public String getName() {
+    return names[policy];
+  }
+
+
+  public void reset() {
+    stamps = null;
+    tree   = null;
+    clock  = 0;
+    seed   = 0x2545F4914F6CDD1DL;
+    if      (policy == LRU)  stamps = new long[n_sets * ways];
+    else if (policy == PLRU) tree   = new long[n_sets];
+  }
+
+
+  /**
+   * mark way of set as most recently used.
+   */
+  public void touch( int set, int way ) {
+    if (policy == LRU) {
+      stamps[set * ways + way] = ++clock;
+    }
+    else if (policy == PLRU) {
+      // walk from the root, pointing each node away from way
+      long bits = tree[set];
+      int  node = 1;
+      for( int level=way_bits-1; level >= 0; level-- ) {
+        int dir = (way >> level) & 1;
+        if (dir == 0) bits |=  (1L << node);
+        else          bits &= ~(1L << node);
+        node = 2*node + dir;
+      }
+      tree[set] = bits;
+    }
+  }
+
+
+  /**
+   * the way of set to replace next.
+   */
+  public int victim( int set ) {
+    if (ways == 1) return 0;
+    if (policy == LRU) {
+      int  base = set * ways;
+      int  best = 0;
+      for( int w=1; w < ways; w++ ) {
+        if (stamps[base+w] < stamps[base+best]) best = w;
+      }
+      return best;
+    }
+    else if (policy == PLRU) {
+      long bits = tree[set];
+      int  node = 1;
+      for( int level=0; level < way_bits; level++ ) {
+        node = 2*node + (int) ((bits >> node) & 1);
+      }
+      return node - ways;
+    }
+    else {
+      seed ^= seed << 13;
+      seed ^= seed >>> 7;
+      seed ^= seed << 17;
+      return (int) (seed >>> 1) & (ways - 1);
+    }
+  }
+
+
+  /**
+   * the bits of replacement state a hardware table would need.
+   */
+  public long getStateBits() {
+    if (ways == 1) return 0;
+    if (policy == LRU)  return (long) n_sets * ways * way_bits;
+    if (policy == PLRU) return (long) n_sets * (ways - 1);
+    return 0;
+  }
+
+}
@@ -0,0 +1,460 @@
+/* ReturnAddressStack.java - gshare.ReturnAddressStack
+ *
+ * 17.10.26 - unregister the metrics in dispose()
+ * 17.10.26 - notify listeners of the words restored by squash()
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.PrintStream;
+
+import  jfig.utils.SetupManager;
+
+
+/**
+ * ReturnAddressStack - a return-address stack, predicting the target of
+ * return instructions. The stack entries are the words of this
+ * GenericMemory, the target word addresses of the pushed calls, so the
+ * memory editor shows the stack contents; the size is the stack depth.
+ * <p>
+ * The ports are those of gshare, with the nWE strobe for a resolved
+ * call or return at PCD:
+ * <pre>
+ *   3  call at PCD: push PCD+1
+ *   2  return at PCD: pop
+ *   1  clear the stack
+ * </pre>
+ * PRED is the top of stack shifted left by two, VP is "11" while the
+ * stack holds a prediction and "00" otherwise; PCF is not used.
+ * <p>
+ * When a call finds the stack full, OVERFLOW_WRAP overwrites the oldest
+ * entry, while OVERFLOW_DISCARD drops the call and counts it, so that
+ * the matching return gives no prediction instead of a wrong one.
+ * <p>
+ * In headless runs, push() is called at the resolve of each call, and
+ * predict() and update() for each return: predict() returns false when
+ * the stack holds no prediction, and update() pops. With
+ * setCheckpoints(), the stack is speculative instead, as in a fetch
+ * unit: push() and predict() push and pop right away, update() is
+ * called in order for every call and return, and squash() undoes the
+ * pushes and pops of all unresolved ones.
+ * <p>
+ * getMetrics() counts each resolved return as a lookup, a hit if the
+ * stack had a prediction, and a misprediction if that was wrong;
+ * pushes are the writes, and overwritten entries the evictions.
+ */
+public class ReturnAddressStack extends PredictorComponent {
+
+  public final static int  OVERFLOW_WRAP    = 0;
+  public final static int  OVERFLOW_DISCARD = 1;
+  public final static String overflowNames[] = { "wrap", "discard" };
+
+  protected  int           pc_bits, target_bits;
+  protected  long          target_mask;
+  protected  int           overflow_policy;
+
+  /* top = slot of the next push, count = valid entries, lost = calls
+   * dropped by OVERFLOW_DISCARD and not yet returned
+   */
+  protected  int           top, count, lost;
+  protected  long          n_overflows, n_underflows;
+  protected  long          predictedTarget;
+
+  /* speculative stack for headless runs, see setCheckpoints(): the
+   * stack pointer before each call or return in flight, and the word
+   * overwritten by a call or predicted by a return (-1 for none)
+   */
+  protected  int           checkpoint_top[], checkpoint_count[], checkpoint_lost[];
+  protected  long          checkpoint_data[];
+  protected  boolean       checkpoint_call[];
+  protected  int           checkpoint_mask;
+  protected  long          checkpoint_head, checkpoint_tail;
+
+  protected  PredictorMetrics  metrics;
+
+
+  public ReturnAddressStack() {
+    super();
+    overflow_policy = Math.max( 0, parseOverflowPolicy(
+      SetupManager.getProperty( "Hades.ReturnAddressStack.Overflow", "wrap" )));
+    pc_bits = SetupManager.getInteger( "Hades.ReturnAddressStack.PCBits", 12 );
+    resize( SetupManager.getInteger( "Hades.ReturnAddressStack.Depth", 8 ),
+            SetupManager.getInteger( "Hades.ReturnAddressStack.TargetBits", 12 ));
+  }
+
+
+  /**
+   * return OVERFLOW_WRAP or OVERFLOW_DISCARD for name, or -1.
+   */
+  public static int parseOverflowPolicy( String name ) {
+    for( int i=0; i < overflowNames.length; i++ ) {
+      if (overflowNames[i].equalsIgnoreCase( name )) return i;
+    }
+    return -1;
+  }
+
+  public void setOverflowPolicy( int policy ) {
+    overflow_policy = policy;
+    clear();
+  }
+
+  public int getOverflowPolicy() {
+    return overflow_policy;
+  }
+
+
+  /**
+   * the stack depth, the number of words.
+   */
+  public void setDepth( int depth ) {
+    resize( depth, getBitsPerWord() );
+  }
+
+  public int getDepth() {
+    return n_words;
+  }
+
+  /**
+   * the width of the stored return word addresses.
+   */
+  public void setTargetBits( int target_bits ) {
+    resize( getSize(), target_bits );
+  }
+
+  public int getTargetBits() {
+    return target_bits;
+  }
+
+
+  public void setSize( int n_words ) {
+    resize( n_words, getBitsPerWord() );
+  }
+
+  public void setBitsPerWord( int n_bits ) {
+    resize( getSize(), n_bits );
+  }
+
+  public boolean resize( int n_words, int n_bits ) {
+    this.n_words = n_words;
+    this.n_bits  = n_bits;
+
+    createMemory();
+    initializeWithZeroes();
+
+    constructStandardValues();
+    constructPorts();
+    return true;
+  }
+
+
+  public void createMemory() {
+    if (n_words < 1) n_words = 1;
+    if (n_bits < 1 || n_bits > 62) n_bits = 12;
+    target_bits = n_bits;
+    target_mask = (1L << target_bits) - 1;
+
+    super.createMemory();
+
+    if (metrics == null) metrics = new PredictorMetrics( n_words );
+    metrics.resize( n_words, 1 );
+    clear();
+  }
+
+
+  /**
+   * options of the design file: pc= bits and overflow=wrap|discard;
+   * the depth is the memory size, the target width the word width.
+   */
+  protected boolean setOption( String key, String value ) {
+    if      (key.equals( "pc" )) pc_bits = Integer.parseInt( value );
+    else if (key.equals( "overflow" )) {
+      overflow_policy = Math.max( 0, parseOverflowPolicy( value ));
+    }
+    else return super.setOption( key, value );
+    return true;
+  }
+
+  protected String getOptions() {
+    return super.getOptions()
+         + " pc=" + pc_bits + " overflow=" + overflowNames[overflow_policy];
+  }
+
+
+  /**
+   * unregister the metrics MBean and stop the periodic dump, when the
+   * component is removed from the design.
+   */
+  public void dispose() {
+    super.dispose();
+    metrics.unregister();
+    metrics.setDumpInterval( getFullName(), 0, System.out );
+  }
+
+
+  public void elaborate( Object arg ) {
+    metrics.register( getFullName() );
+    metrics.setDumpInterval( getFullName(),
+      SetupManager.getInteger( "Hades.ReturnAddressStack.MetricsDumpInterval", 0 ),
+      System.out );
+    super.elaborate( arg );
+  }
+
+
+  protected int getPCWidth()     { return pc_bits; }
+  protected int getTargetWidth() { return target_bits; }
+  protected int getVPWidth()     { return 2; }
+
+  protected String[] getSymbolLabel() {
+    return new String[] { "Return", "Stack" };
+  }
+
+
+  /* the stack */
+
+  /**
+   * true if a return would get a prediction from the top of stack.
+   */
+  public boolean hasPrediction() {
+    return count > 0 && lost == 0;
+  }
+
+  protected final int topSlot() {
+    return (top == 0) ? n_words-1 : top-1;
+  }
+
+  /**
+   * push the return word address of a call.
+   */
+  protected void pushWord( long value ) {
+    if (count == n_words && overflow_policy == OVERFLOW_DISCARD) {
+      lost++;
+      return;
+    }
+    long old_v = getDataAt( top );
+    long new_v = value & target_mask;
+    setDataAt( top, new_v );
+    notifyWriteListeners( top, old_v, new_v );
+    metrics.write( top, count == n_words );
+
+    top = (top + 1 == n_words) ? 0 : top + 1;
+    if (count < n_words) count++;
+  }
+
+  /**
+   * pop the top of stack, return -1 if it held no prediction.
+   */
+  protected long popWord() {
+    if (lost > 0) {
+      lost--;
+      return -1;
+    }
+    if (count == 0) return -1;
+    top = topSlot();
+    count--;
+    return getDataAt( top );
+  }
+
+  public void clear() {
+    top = count = lost = 0;
+    checkpoint_head = checkpoint_tail = 0;
+  }
+
+
+  protected void fetch( long pcf ) {
+    if (hasPrediction()) {
+      int  slot = topSlot();
+      long v    = getDataAt( slot );
+      out_VP   = vector_VP[3];
+      out_PRED = getPredVector( v );
+      notifyReadListeners( slot, v );
+    }
+    else {
+      out_VP   = vector_VP[0];
+      out_PRED = vector_PRED_000;
+    }
+  }
+
+
+  protected void strobe( int nWE, long pcd, long destcd ) {
+    if (nWE == 3) {
+      if (count == n_words) n_overflows++;
+      pushWord( pcd + 1 );
+    }
+    else if (nWE == 2) {
+      countReturn( destcd & target_mask );
+    }
+    else if (nWE == 1) {
+      clear();
+    }
+  }
+
+
+  /**
+   * pop for a return to word address target, and count it.
+   */
+  protected void countReturn( long target ) {
+    if (count == 0 && lost == 0) n_underflows++;
+    count( popWord(), target );
+  }
+
+  protected final void count( long predicted, long target ) {
+    metrics.lookup( predicted >= 0 ? 0 : -1 );
+    metrics.resolve( predicted >= 0 && predicted != target );
+  }
+
+
+  protected void resetPredictor() {
+    initializeWithZeroes();
+    clear();
+  }
+
+
+  /* BranchPredictor, byte addresses as in gshare */
+
+  /**
+   * keep n calls and returns in flight, pushing and popping at
+   * push() and predict(); n = 0 updates the stack at resolve.
+   * n is rounded up to a power of two.
+   */
+  public void setCheckpoints( int n ) {
+    if (n <= 0) {
+      checkpoint_top   = checkpoint_count = checkpoint_lost = null;
+      checkpoint_data  = null;
+      checkpoint_call  = null;
+      checkpoint_mask  = 0;
+    }
+    else {
+      int size = 1;
+      while (size < n) size <<= 1;
+      checkpoint_top   = new int[size];
+      checkpoint_count = new int[size];
+      checkpoint_lost  = new int[size];
+      checkpoint_data  = new long[size];
+      checkpoint_call  = new boolean[size];
+      checkpoint_mask  = size - 1;
+    }
+    checkpoint_head = checkpoint_tail = 0;
+  }
+
+  public boolean isSpeculative() {
+    return checkpoint_data != null;
+  }
+
+  protected void checkpoint( boolean call, long data ) {
+    if (checkpoint_tail - checkpoint_head > checkpoint_mask) {
+      throw new IllegalStateException( toString()
+        + ": more than " + checkpoint_data.length + " calls and returns in flight" );
+    }
+    int slot = (int) (checkpoint_tail++ & checkpoint_mask);
+    checkpoint_top[slot]   = top;
+    checkpoint_count[slot] = count;
+    checkpoint_lost[slot]  = lost;
+    checkpoint_call[slot]  = call;
+    checkpoint_data[slot]  = data;
+  }
+
+  /**
+   * undo the unresolved calls and returns, youngest first: restore the
+   * words overwritten by calls, notifying the listeners as pushWord()
+   * does, and the stack pointer of the oldest.
+   */
+  public void squash() {
+    if (checkpoint_data == null) return;
+    while (checkpoint_tail != checkpoint_head) {
+      int slot = (int) (--checkpoint_tail & checkpoint_mask);
+      top   = checkpoint_top[slot];
+      count = checkpoint_count[slot];
+      lost  = checkpoint_lost[slot];
+      if (checkpoint_call[slot] && checkpoint_data[slot] >= 0) {
+        long old_v = getDataAt( top );
+        long new_v = checkpoint_data[slot];
+        if (new_v != old_v) {
+          setDataAt( top, new_v );
+          notifyWriteListeners( top, old_v, new_v );
+        }
+      }
+    }
+  }
+
+
+  /**
+   * push the return address of a call, the byte address of the
+   * instruction following it.
+   */
+  public void push( long return_address ) {
+    if (checkpoint_data != null) {
+      boolean dropped = count == n_words && overflow_policy == OVERFLOW_DISCARD;
+      checkpoint( true, dropped ? -1 : getDataAt( top ));
+    }
+    else if (count == n_words) n_overflows++;
+    pushWord( return_address >>> 2 );
+  }
+
+  /**
+   * return true if the stack predicts the return at pc; the target
+   * is the top of stack, with the upper bits taken from pc.
+   */
+  public boolean predict( long pc ) {
+    long v = hasPrediction() ? getDataAt( topSlot() ) : -1;
+    if (checkpoint_data != null) {
+      checkpoint( false, v );
+      popWord();
+    }
+    if (v < 0) return false;
+    predictedTarget = (pc & ~((target_mask << 2) | 3)) | (v << 2);
+    return true;
+  }
+
+  public long getPredictedTarget() {
+    return predictedTarget;
+  }
+
+  /**
+   * the return at pc resolved to target: pop. When speculative, this
+   * resolves the oldest call or return in flight.
+   */
+  public void update( long pc, long target, boolean taken ) {
+    if (checkpoint_data == null) {
+      countReturn( (target >>> 2) & target_mask );
+      return;
+    }
+    if (checkpoint_head == checkpoint_tail) return;
+    int  slot = (int) (checkpoint_head++ & checkpoint_mask);
+    if (checkpoint_call[slot]) {
+      if (checkpoint_count[slot] == n_words) n_overflows++;
+    }
+    else {
+      if (checkpoint_count[slot] == 0 && checkpoint_lost[slot] == 0) n_underflows++;
+      count( checkpoint_data[slot], (target >>> 2) & target_mask );
+    }
+  }
+
+
+  public long getOverflowCount()  { return n_overflows; }
+  public long getUnderflowCount() { return n_underflows; }
+
+  /**
+   * the always-on hit/miss counters.
+   */
+  public PredictorMetrics getMetrics() {
+    return metrics;
+  }
+
+
+  public void printReport( PrintStream ps ) {
+    ps.println( "return stack     depth " + n_words + ", "
+                + overflowNames[overflow_policy] + ", "
+                + metrics.getLookups() + " returns, "
+                + metrics.getTagHits() + " predicted, "
+                + metrics.getMispredictions() + " wrong" );
+    ps.println( "stack overflows  " + n_overflows
+                + ", underflows " + n_underflows );
+  }
+
+
+  public long getStorageBits() {
+    return (long) n_words * n_bits;
+  }
+
+}
@@ -0,0 +1,141 @@
+/* SparseStorage.java - gshare.SparseStorage
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.util.Arrays;
+
+
+/**
+ * SparseStorage - a page table for large, mostly empty memories.
+ * The words are kept in pages of PAGE_WORDS longs, which are only
+ * allocated when a word in them is set to a value other than the
+ * default value. Unallocated pages read as the default value.
+ * <p>
+ * fill() just drops all pages and changes the default, so that
+ * initializeWithZeroes() and initializeWithX() take time proportional
+ * to the number of pages, not words, and the heap used is about
+ * 8 bytes per page plus the allocated pages. For a 2^24 word memory,
+ * the page table has 32768 entries.
+ */
+public class SparseStorage implements WordStorage {
+
+  public final static int  PAGE_BITS  = 9;
+  public final static int  PAGE_WORDS = 1 << PAGE_BITS;
+  public final static int  PAGE_MASK  = PAGE_WORDS - 1;
+
+  protected int     n_words;
+  protected long    default_value;
+  protected long    pages[][];
+  protected int     n_allocated;
+
+
+  public SparseStorage( int n_words ) {
+    this.n_words = n_words;
+    this.pages   = new long[ (n_words + PAGE_MASK) >>> PAGE_BITS ][];
+  }
+
+
+  public int size() {
+    return n_words;
+  }
+
+
+  public long get( int address ) {
+    long page[] = pages[address >>> PAGE_BITS];
+    return (page == null) ? default_value : page[address & PAGE_MASK];
+  }
+
+
+  public void set( int address, long value ) {
+    long page[] = pages[address >>> PAGE_BITS];
+    if (page == null) {
+      if (value == default_value) return;
+      page = allocatePage( address >>> PAGE_BITS );
+    }
+    page[address & PAGE_MASK] = value;
+  }
+
+
+  protected long[] allocatePage( int p ) {
+    long page[] = new long[PAGE_WORDS];
+    if (default_value != 0) Arrays.fill( page, default_value );
+    pages[p] = page;
+    n_allocated++;
+    return page;
+  }
+
+
+  /**
+   * release all pages; value becomes the default value.
+   */
+  public void fill( long value ) {
+    if (n_allocated > 0) Arrays.fill( pages, null );
+    n_allocated   = 0;
+    default_value = value;
+  }
+
+  public long getDefaultValue() {
+    return default_value;
+  }
+
+
+  public void getWords( int address, long dst[], int offset, int length ) {
+    while( length > 0 ) {
+      int  o    = address & PAGE_MASK;
+      int  n    = Math.min( length, PAGE_WORDS - o );
+      long page[] = pages[address >>> PAGE_BITS];
+      if (page == null) Arrays.fill( dst, offset, offset+n, default_value );
+      else              System.arraycopy( page, o, dst, offset, n );
+      address += n; offset += n; length -= n;
+    }
+  }
+
+
+  /**
+   * copy src into the pages; runs of the default value do not
+   * allocate pages.
+   */
+  public void setWords( int address, long src[], int offset, int length ) {
+    while( length > 0 ) {
+      int  o    = address & PAGE_MASK;
+      int  n    = Math.min( length, PAGE_WORDS - o );
+      int  p    = address >>> PAGE_BITS;
+      long page[] = pages[p];
+      if (page == null) {
+        for( int i=0; i < n; i++ ) {
+          if (src[offset+i] != default_value) {
+            page = allocatePage( p );
+            break;
+          }
+        }
+      }
+      if (page != null) System.arraycopy( src, offset, page, o, n );
+      address += n; offset += n; length -= n;
+    }
+  }
+
+
+  /**
+   * true if the page holding address is allocated; words of the other
+   * pages all have the default value.
+   */
+  public boolean isAllocated( int address ) {
+    return pages[address >>> PAGE_BITS] != null;
+  }
+
+  public int getAllocatedPages() {
+    return n_allocated;
+  }
+
+  public int getPageCount() {
+    return pages.length;
+  }
+
+
+  public void close() {
+  }
+
+}
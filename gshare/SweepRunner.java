@@ -0,0 +1,264 @@
+/* SweepRunner.java - gshare.SweepRunner
+ *
+ * 17.10.26 - skip configurations the gshare rejects
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+import  java.util.ArrayList;
+import  java.util.List;
+import  java.util.concurrent.Callable;
+import  java.util.concurrent.ForkJoinPool;
+import  java.util.concurrent.Future;
+
+
+/**
+ * SweepRunner - runs one branch trace through many gshare configurations
+ * in parallel, and writes one CSV line per configuration.
+ * <p>
+ * The trace is read once into a BranchTraceBuffer, which all workers
+ * replay read-only through their own cursors. Each configuration gets
+ * its own gshare instance, so the runs share nothing but the trace.
+ * <p>
+ * Usage: <code>java gshare.SweepRunner [-threads n] [-o file.csv]
+ * [-index list] [-tag list] [-target list] [-counter list] [-history list]
+ * [-ways list] [-replacement list] tracefile</code>
+ * <br>
+ * where a list is a value (8), values (4,8,12), a range (4:16) or a range
+ * with step (4:16:4). The cartesian product of all lists is swept.
+ * Configurations that gshare.setGeometry() or setWays() reject are
+ * not run, and left out of the CSV.
+ */
+public class SweepRunner {
+
+  /**
+   * one point of the sweep, and its results once run.
+   */
+  public static class Config {
+    public int     index_bits, tag_bits, target_bits, counter_bits;
+    public int     history_bits, ways, policy;
+    public boolean valid = true;     // false if the gshare rejected it
+
+    public long    storage_bits, branches, instructions, mispredictions;
+    public double  accuracy;
+    public int     lines, valid_lines, lines_written;
+    public long    elapsed_nanos;
+
+    public static String header() {
+      return "index,tag,target,counter,history,ways,replacement,"
+           + "storage_bits,branches,instructions,mispredictions,"
+           + "accuracy,mpki,occupancy,lines_written,ms";
+    }
+
+    public double getMPKI() {
+      return (instructions == 0) ? 0.0 : 1000.0 * mispredictions / instructions;
+    }
+
+    public String toString() {
+      return index_bits + "," + tag_bits + "," + target_bits + ","
+           + counter_bits + "," + history_bits + "," + ways + ","
+           + ReplacementPolicy.names[policy] + ","
+           + storage_bits + "," + branches + "," + instructions + ","
+           + mispredictions + ","
+           + String.format( "%.6f,%.4f,%.4f", accuracy, getMPKI(),
+                            (double) valid_lines / lines ) + ","
+           + lines_written + ","
+           + String.format( "%.1f", elapsed_nanos * 1.0E-6 );
+    }
+  }
+
+
+  protected BranchTraceBuffer  trace;
+  protected List<Config>       configs = new ArrayList<Config>();
+
+
+  public SweepRunner( BranchTraceBuffer trace ) {
+    this.trace = trace;
+  }
+
+
+  public void add( Config config ) {
+    configs.add( config );
+  }
+
+  public List<Config> getConfigs() {
+    return configs;
+  }
+
+
+  /**
+   * run one configuration on the calling thread.
+   */
+  public void run( Config c ) throws IOException {
+    gshare table = new gshare();
+    table.setReplacementPolicy( c.policy );
+    if (!table.setWays( c.ways )
+        || !table.setGeometry( c.index_bits, c.tag_bits, c.target_bits,
+                               c.counter_bits ))
+    {
+      c.valid = false;
+      return;
+    }
+    table.setHistoryBits( c.history_bits );
+
+    TraceEngine engine = new TraceEngine( table );
+    engine.run( trace.cursor() );
+
+    c.storage_bits   = table.getStorageBits();
+    c.branches       = engine.getBranchCount();
+    c.instructions   = trace.getInstructionCount();
+    c.mispredictions = engine.getDirectionMispredictions()
+                     + engine.getTargetMispredictions();
+    c.accuracy       = engine.getAccuracy();
+    c.lines          = table.getSize();
+    c.valid_lines    = table.getValidLines();
+    c.lines_written  = table.getMetrics().getLinesWritten();
+    c.elapsed_nanos  = engine.elapsed_nanos;
+  }
+
+
+  /**
+   * run all configurations on a fork-join pool of n_threads workers.
+   */
+  public void runAll( int n_threads ) throws Exception {
+    ForkJoinPool pool = new ForkJoinPool( n_threads );
+    try {
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for( final Config c : configs ) {
+        tasks.add( new Callable<Object>() {
+            public Object call() throws Exception {
+              run( c );
+              return null;
+            }
+          });
+      }
+      for( Future<Object> f : pool.invokeAll( tasks )) {
+        f.get();  // rethrows a failed run
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+
+  public void writeCSV( PrintStream ps ) {
+    ps.println( Config.header() );
+    for( Config c : configs ) {
+      if (c.valid) ps.println( c );
+    }
+  }
+
+  public int getInvalidCount() {
+    int n = 0;
+    for( Config c : configs ) {
+      if (!c.valid) n++;
+    }
+    return n;
+  }
+
+
+  /**
+   * parse "8", "4,8,12", "4:16" or "4:16:4".
+   */
+  public static int[] parseList( String s ) {
+    List<Integer> values = new ArrayList<Integer>();
+    String items[] = s.split( "," );
+    for( int i=0; i < items.length; i++ ) {
+      String range[] = items[i].split( ":" );
+      int lo   = Integer.parseInt( range[0].trim() );
+      int hi   = (range.length > 1) ? Integer.parseInt( range[1].trim() ) : lo;
+      int step = (range.length > 2) ? Integer.parseInt( range[2].trim() ) : 1;
+      for( int v=lo; v <= hi; v += Math.max( 1, step )) values.add( v );
+    }
+    int result[] = new int[values.size()];
+    for( int i=0; i < result.length; i++ ) result[i] = values.get( i );
+    return result;
+  }
+
+
+  public static void usage() {
+    System.err.println( "Usage: java gshare.SweepRunner [-threads n] [-o file.csv] "
+                        + "[-index list] [-tag list] [-target list] "
+                        + "[-counter list] [-history list] [-ways list] "
+                        + "[-replacement list] tracefile" );
+    System.err.println( "  list: 8 | 4,8,12 | 4:16 | 4:16:4" );
+    System.exit( 1 );
+  }
+
+
+  public static void main( String argv[] ) throws Exception {
+    int    index[]   = { 8 },  tag[]     = { 4 }, target[] = { 12 };
+    int    counter[] = { 2 },  history[] = { 0 }, ways[]   = { 1 };
+    int    policy[]  = { ReplacementPolicy.LRU };
+    int    n_threads = Runtime.getRuntime().availableProcessors();
+    String output    = null;
+    String filename  = null;
+
+    for( int i=0; i < argv.length; i++ ) {
+      String arg = argv[i];
+      if (arg.startsWith( "-" ) && i+1 >= argv.length) usage();
+
+      if      (arg.equals( "-threads" ))  n_threads = Integer.parseInt( argv[++i] );
+      else if (arg.equals( "-o" ))        output    = argv[++i];
+      else if (arg.equals( "-index" ))    index     = parseList( argv[++i] );
+      else if (arg.equals( "-tag" ))      tag       = parseList( argv[++i] );
+      else if (arg.equals( "-target" ))   target    = parseList( argv[++i] );
+      else if (arg.equals( "-counter" ))  counter   = parseList( argv[++i] );
+      else if (arg.equals( "-history" ))  history   = parseList( argv[++i] );
+      else if (arg.equals( "-ways" ))     ways      = parseList( argv[++i] );
+      else if (arg.equals( "-replacement" )) {
+        String names[] = argv[++i].split( "," );
+        policy = new int[names.length];
+        for( int j=0; j < names.length; j++ ) {
+          policy[j] = ReplacementPolicy.parse( names[j] );
+          if (policy[j] < 0) usage();
+        }
+      }
+      else if (arg.startsWith( "-" )) usage();
+      else filename = arg;
+    }
+    if (filename == null) usage();
+
+    long start = System.nanoTime();
+    BranchTraceBuffer trace = BranchTraceBuffer.load( filename );
+    SweepRunner sweep = new SweepRunner( trace );
+
+    for( int a : index ) for( int b : tag ) for( int c : target )
+    for( int d : counter ) for( int e : history ) for( int f : ways )
+    for( int g : policy ) {
+      if (b + c + d > 62 || f < 1 || f > 64 || (f & (f-1)) != 0) continue;
+      if (f == 1 && g != policy[0]) continue;  // no replacement to vary
+      Config config = new Config();
+      config.index_bits   = a;
+      config.tag_bits     = b;
+      config.target_bits  = c;
+      config.counter_bits = d;
+      config.history_bits = e;
+      config.ways         = f;
+      config.policy       = g;
+      sweep.add( config );
+    }
+
+    sweep.runAll( n_threads );
+
+    PrintStream ps = (output == null) ? System.out
+                   : new PrintStream( new BufferedOutputStream(
+                                        new FileOutputStream( output )));
+    sweep.writeCSV( ps );
+    ps.flush();
+    if (ps != System.out) ps.close();
+
+    if (sweep.getInvalidCount() > 0) {
+      System.err.println( "-W- " + sweep.getInvalidCount()
+                          + " illegal configurations skipped" );
+    }
+
+    System.err.println( "-I- " + sweep.getConfigs().size() + " configurations, "
+                        + trace.size() + " branches, " + n_threads + " threads, "
+                        + String.format( "%.2f s", (System.nanoTime() - start) * 1.0E-9 ));
+  }
+
+}
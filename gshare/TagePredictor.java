@@ -0,0 +1,501 @@
+/* TagePredictor.java - gshare.TagePredictor
+ *
+ * 17.10.26 - dispose() the base and BTB tables
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.PrintStream;
+
+import  jfig.utils.SetupManager;
+
+
+/**
+ * TagePredictor - a TAGE style predictor (Seznec, Michaud: "A case for
+ * (partially) TAgged GEometric history length branch prediction"): a
+ * bimodal base table, and n_tables tagged tables indexed and tagged by
+ * hashes of the PC and of global histories of geometrically increasing
+ * length. The longest matching table provides the prediction.
+ * <p>
+ * The tagged entries are the words of this GenericMemory, table t at
+ * addresses t*2^table_bits ..., each entry
+ * <pre>
+ *   (tag << 5) | (u << 3) | ctr
+ * </pre>
+ * with a 3-bit prediction counter ctr (taken for ctr >= 4) and a 2-bit
+ * usefulness counter u. The base table is a CounterTable, the target
+ * (PRED) comes from a plain gshare table used as BTB.
+ * <p>
+ * Histories are kept in a circular bit buffer and folded incrementally,
+ * so a prediction or update costs O(n_tables) and allocates nothing.
+ * The ports are those of gshare; nWE must be strobed for every resolved
+ * branch (3 = taken, 2 = not taken, 1 = invalidate the target entry).
+ */
+public class TagePredictor extends PredictorComponent {
+
+  protected final static int  U_RESET_PERIOD = 1 << 18;
+
+  protected  int           n_tables, table_bits, tag_bits;
+  protected  int           min_history, max_history, base_bits;
+  protected  long          table_mask, tag_mask;
+
+  protected  int           history_length[];
+  protected  long          fold_index[], fold_tag1[], fold_tag2[];
+  protected  byte          ghist[];
+  protected  int           ghist_mask, ghist_pos;
+
+  protected  CounterTable  base;
+  protected  gshare        btb;
+
+  /* scratch state of the branch looked up last, see lookup() */
+  protected  int           index[];
+  protected  long          tag[];
+  protected  int           provider, alt;
+  protected  boolean       provider_pred, alt_pred, pred, weak_new;
+  protected  long          pred_counter;     // 2-bit, for VP
+
+  protected  long          use_alt_on_na = 8;
+  protected  long          n_updates;
+  protected  long          provided[];       // per table, [n_tables] = base
+  protected  long          n_allocations, n_allocation_fails;
+
+
+  public TagePredictor() {
+    super();
+    setGeometry( SetupManager.getInteger( "Hades.TagePredictor.Tables",      4 ),
+                 SetupManager.getInteger( "Hades.TagePredictor.TableBits",  10 ),
+                 SetupManager.getInteger( "Hades.TagePredictor.TagBits",     9 ),
+                 SetupManager.getInteger( "Hades.TagePredictor.MinHistory",  4 ),
+                 SetupManager.getInteger( "Hades.TagePredictor.MaxHistory", 64 ),
+                 SetupManager.getInteger( "Hades.TagePredictor.BaseBits",   12 ));
+  }
+
+
+  /**
+   * n_tables tagged tables of 2^table_bits entries with tags of tag_bits,
+   * history lengths from min_history to max_history in geometric
+   * progression, and a base table of 2^base_bits 2-bit counters.
+   */
+  public void setGeometry( int n_tables, int table_bits, int tag_bits,
+                           int min_history, int max_history, int base_bits )
+  {
+    if (n_tables < 1 || table_bits < 1 || tag_bits < 2 || tag_bits > 58
+        || min_history < 1 || max_history < min_history)
+    {
+      message( "-E- " + toString() + ": illegal geometry" );
+      return;
+    }
+    this.n_tables    = n_tables;
+    this.tag_bits    = tag_bits;
+    this.min_history = min_history;
+    this.max_history = max_history;
+    this.base_bits   = base_bits;
+    resize( n_tables << table_bits, 5 + tag_bits );
+  }
+
+  public int getTableCount()  { return n_tables; }
+  public int getTableBits()   { return table_bits; }
+  public int getTagBits()     { return tag_bits; }
+
+  public int getHistoryLength( int table ) {
+    return history_length[table];
+  }
+
+  public CounterTable getBaseTable() {
+    return base;
+  }
+
+  public gshare getTargetTable() {
+    return btb;
+  }
+
+
+  public boolean canChangeSize() {
+    return !isConnected();
+  }
+
+  public void setSize( int n_words ) {
+    resize( n_words, getBitsPerWord() );
+  }
+
+  public void setBitsPerWord( int n_bits ) {
+    resize( getSize(), n_bits );
+  }
+
+  public boolean resize( int n_words, int n_bits ) {
+    this.n_words = n_words;
+    this.n_bits  = n_bits;
+
+    createMemory();
+    initializeWithZeroes();
+
+    constructStandardValues();
+    constructPorts();
+    return true;
+  }
+
+
+  /**
+   * derive table_bits and tag_bits from n_words and n_bits, allocate the
+   * tagged entries, and set up histories, base table and BTB.
+   */
+  public void createMemory() {
+    if (n_tables < 1) n_tables = 1;
+    int tb = 1;
+    while ((n_tables << tb) < n_words && tb < 24) tb++;
+    table_bits = tb;
+    n_words    = n_tables << tb;
+    tag_bits   = Math.max( 2, n_bits - 5 );
+    n_bits     = 5 + tag_bits;
+    table_mask = (1L << table_bits) - 1;
+    tag_mask   = (1L << tag_bits) - 1;
+
+    super.createMemory();
+
+    if (min_history < 1) min_history = 1;
+    if (max_history < min_history) max_history = min_history;
+    history_length = new int[n_tables];
+    for( int i=0; i < n_tables; i++ ) {
+      double r = (n_tables == 1) ? 0.0 : (double) i / (n_tables - 1);
+      history_length[i] = (int) Math.round(
+        min_history * Math.pow( (double) max_history / min_history, r ));
+    }
+    int size = 2;
+    while (size <= max_history) size <<= 1;
+    ghist      = new byte[size];
+    ghist_mask = size - 1;
+    ghist_pos  = 0;
+
+    fold_index = new long[n_tables];
+    fold_tag1  = new long[n_tables];
+    fold_tag2  = new long[n_tables];
+    index      = new int[n_tables];
+    tag        = new long[n_tables];
+    provided   = new long[n_tables + 1];
+
+    if (base_bits < 1) base_bits = 1;
+    if (base == null || base.getIndexBits() != base_bits) {
+      if (base != null) base.dispose();
+      base = new CounterTable( base_bits, 2 );
+      base.setName( "base" );
+    }
+    if (btb == null) {
+      btb = new gshare();
+      btb.setHistoryBits( 0 );
+      btb.setName( "btb" );
+    }
+  }
+
+
+  public void dispose() {
+    super.dispose();
+    if (base != null) base.dispose();
+    if (btb != null)  btb.dispose();
+  }
+
+
+  /**
+   * options of the design file: tables=, minhist=, maxhist= and base=;
+   * table and tag widths follow from the memory geometry.
+   */
+  protected boolean setOption( String key, String value ) {
+    if      (key.equals( "tables" ))  n_tables    = Integer.parseInt( value );
+    else if (key.equals( "minhist" )) min_history = Integer.parseInt( value );
+    else if (key.equals( "maxhist" )) max_history = Integer.parseInt( value );
+    else if (key.equals( "base" ))    base_bits   = Integer.parseInt( value );
+    else return super.setOption( key, value );
+    return true;
+  }
+
+  protected String getOptions() {
+    return super.getOptions()
+         + " tables=" + n_tables + " minhist=" + min_history
+         + " maxhist=" + max_history + " base=" + base_bits;
+  }
+
+  public boolean initialize( String s ) {
+    boolean ok = super.initialize( s );
+    if (resourcename == null || resourcename.length() == 0) {
+      initializeWithZeroes();  // instead of X
+    }
+    return ok;
+  }
+
+
+  public void configure() {
+    super.configure();
+    base.configure();
+    btb.configure();
+  }
+
+
+  protected int getPCWidth()     { return btb != null ? btb.getPCWidth() : 12; }
+  protected int getTargetWidth() { return btb != null ? btb.getTargetWidth() : 12; }
+  protected int getVPWidth()     { return 2; }
+
+  protected String[] getSymbolLabel() {
+    return new String[] { "TAGE", "Predictor" };
+  }
+
+
+  /**
+   * compute indices and tags for the branch at word address pc, find
+   * the provider (longest matching table) and the alternate prediction,
+   * and set pred.
+   */
+  protected void lookup( long pc ) {
+    provider = -1;
+    alt      = -1;
+    for( int i=n_tables-1; i >= 0; i-- ) {
+      long h = pc ^ (pc >>> (table_bits - (i % table_bits))) ^ fold_index[i];
+      index[i] = (i << table_bits) | (int) (h & table_mask);
+      tag[i]   = (pc ^ fold_tag1[i] ^ (fold_tag2[i] << 1)) & tag_mask;
+
+      if (((getDataAt( index[i] ) >>> 5) & tag_mask) == tag[i]) {
+        if      (provider < 0) provider = i;
+        else if (alt < 0)      alt      = i;
+      }
+    }
+
+    long alt_counter;
+    if (alt >= 0) {
+      long c      = getDataAt( index[alt] ) & 7;
+      alt_pred    = c >= 4;
+      alt_counter = c >> 1;
+    }
+    else {
+      long c      = base.getCounter( (int) (pc & base.getIndexMask()) );
+      alt_pred    = c >= 2;
+      alt_counter = c;
+    }
+
+    if (provider >= 0) {
+      long e  = getDataAt( index[provider] );
+      long c  = e & 7;
+      provider_pred = c >= 4;
+      weak_new      = (c == 3 || c == 4) && ((e >> 3) & 3) == 0;
+      if (weak_new && use_alt_on_na >= 8) {
+        pred         = alt_pred;
+        pred_counter = alt_counter;
+      }
+      else {
+        pred         = provider_pred;
+        pred_counter = c >> 1;
+      }
+    }
+    else {
+      weak_new     = false;
+      pred         = alt_pred;
+      pred_counter = alt_counter;
+    }
+  }
+
+
+  /**
+   * train the tables with the outcome of the branch at word address pc,
+   * then shift the outcome into the histories.
+   */
+  protected void train( long pc, boolean taken ) {
+    lookup( pc );
+
+    provided[(provider >= 0) ? provider : n_tables]++;
+
+    if (provider >= 0 && weak_new && provider_pred != alt_pred) {
+      if (alt_pred == taken) { if (use_alt_on_na < 15) use_alt_on_na++; }
+      else                   { if (use_alt_on_na > 0)  use_alt_on_na--; }
+    }
+
+    // allocate on a misprediction, in one longer table with u == 0
+    if (pred != taken && provider < n_tables - 1) {
+      boolean allocated = false;
+      for( int i=provider+1; i < n_tables; i++ ) {
+        long e = getDataAt( index[i] );
+        if (((e >> 3) & 3) == 0) {
+          writeEntry( index[i], e, (tag[i] << 5) | (taken ? 4 : 3) );
+          allocated = true;
+          break;
+        }
+      }
+      if (allocated) {
+        n_allocations++;
+      }
+      else {
+        n_allocation_fails++;
+        for( int i=provider+1; i < n_tables; i++ ) {
+          long e = getDataAt( index[i] );
+          writeEntry( index[i], e, e - (1 << 3) );   // u > 0 here
+        }
+      }
+    }
+
+    if (provider >= 0) {
+      long e = getDataAt( index[provider] );
+      long u = (e >> 3) & 3;
+      if (u == 0) {
+        // a new entry: keep training the alternate as well
+        if (alt >= 0) writeEntry( index[alt], getDataAt( index[alt] ),
+                                  trainCounter( getDataAt( index[alt] ), taken ));
+        else          base.train( (int) (pc & base.getIndexMask()), taken );
+      }
+      long n = trainCounter( e, taken );
+      if (provider_pred != alt_pred) {
+        if (provider_pred == taken) { if (u < 3) n += 1 << 3; }
+        else                        { if (u > 0) n -= 1 << 3; }
+      }
+      writeEntry( index[provider], e, n );
+    }
+    else {
+      base.train( (int) (pc & base.getIndexMask()), taken );
+    }
+
+    // graceful aging of the usefulness counters
+    if ((++n_updates & (U_RESET_PERIOD - 1)) == 0) {
+      for( int a=0; a < n_words; a++ ) {
+        long e = getDataAt( a );
+        long u = (e >> 3) & 3;
+        if (u != 0) writeEntry( a, e, (e & ~(3L << 3)) | ((u >> 1) << 3) );
+      }
+    }
+
+    pushHistory( taken );
+  }
+
+
+  protected static long trainCounter( long e, boolean taken ) {
+    long c = e & 7;
+    if (taken) { if (c < 7) return e + 1; }
+    else       { if (c > 0) return e - 1; }
+    return e;
+  }
+
+
+  protected void writeEntry( int address, long old_e, long new_e ) {
+    if (new_e == old_e) return;
+    setDataAt( address, new_e );
+    notifyWriteListeners( address, old_e, new_e );
+  }
+
+
+  /**
+   * shift taken into the global history and update the folded histories.
+   */
+  protected void pushHistory( boolean taken ) {
+    int in = taken ? 1 : 0;
+    ghist_pos = (ghist_pos - 1) & ghist_mask;
+    ghist[ghist_pos] = (byte) in;
+
+    for( int i=0; i < n_tables; i++ ) {
+      int len = history_length[i];
+      int out = ghist[(ghist_pos + len) & ghist_mask];
+      fold_index[i] = fold( fold_index[i], in, out, len, table_bits );
+      fold_tag1[i]  = fold( fold_tag1[i],  in, out, len, tag_bits );
+      fold_tag2[i]  = fold( fold_tag2[i],  in, out, len, tag_bits - 1 );
+    }
+  }
+
+
+  /**
+   * the folded history of width bits after shifting in bit in, with bit
+   * out leaving a history of len bits.
+   */
+  protected static long fold( long comp, int in, int out, int len, int width ) {
+    comp  = (comp << 1) | in;
+    comp ^= (long) out << (len % width);
+    comp ^= comp >>> width;
+    return comp & ((1L << width) - 1);
+  }
+
+
+  protected void fetch( long pcf ) {
+    lookup( pcf );
+    out_VP   = vector_VP[(int) (pred_counter & 3)];
+    out_PRED = getPredVector( btb.peekLine( pcf ) & btb.target_mask );
+    if (provider >= 0) notifyReadListeners( index[provider], getDataAt( index[provider] ));
+  }
+
+
+  protected void strobe( int nWE, long pcd, long destcd ) {
+    if (nWE == 3 || nWE == 2) train( pcd, nWE == 3 );
+    if (nWE == 3 || nWE == 1) btb.writeLine( nWE, pcd, destcd );
+  }
+
+
+  /**
+   * clear all tables and histories.
+   */
+  protected void resetPredictor() {
+    initializeWithZeroes();
+    base.initializeWithDefaultValues();
+    btb.initializeWithZeroes();
+    java.util.Arrays.fill( ghist, (byte) 0 );
+    java.util.Arrays.fill( fold_index, 0 );
+    java.util.Arrays.fill( fold_tag1, 0 );
+    java.util.Arrays.fill( fold_tag2, 0 );
+    use_alt_on_na = 8;
+  }
+
+
+  protected void timeStep( double time ) {
+    listenerTimeStep( time );
+    base.listenerTimeStep( time );
+    btb.timeStep( time );
+  }
+
+
+  /* BranchPredictor: byte addresses; the tables hash the full word
+   * address, the BTB uses its PCF width as in gshare.
+   */
+
+  protected long predictedTarget;
+
+  public boolean predict( long pc ) {
+    lookup( pc >>> 2 );
+    btb.predict( pc );
+    predictedTarget = btb.getPredictedTarget();
+    return pred;
+  }
+
+  public long getPredictedTarget() {
+    return predictedTarget;
+  }
+
+  public void update( long pc, long target, boolean taken ) {
+    train( pc >>> 2, taken );
+    if (taken) {
+      long pcd    = (pc >>> 2) & btb.getPCMask();
+      long destcd = (target >>> 2) & btb.target_mask;
+      long data_x = btb.peekLine( pcd );
+      if (data_x == 0 || (data_x & btb.target_mask) != destcd) {
+        btb.writeLine( 3, pcd, destcd );
+      }
+    }
+  }
+
+
+  public void printReport( PrintStream ps ) {
+    long n = 0;
+    for( int i=0; i <= n_tables; i++ ) n += provided[i];
+    ps.println( String.format( "provider base    %d (%.2f %%)",
+                  provided[n_tables], 100.0 * provided[n_tables] / Math.max( 1, n )));
+    for( int i=0; i < n_tables; i++ ) {
+      ps.println( String.format( "provider T%-2d     %d (%.2f %%), history %d",
+                    i+1, provided[i], 100.0 * provided[i] / Math.max( 1, n ),
+                    history_length[i] ));
+    }
+    ps.println( "allocations      " + n_allocations
+                + ", failed " + n_allocation_fails );
+  }
+
+
+  /**
+   * storage in bits: tagged tables, base table, BTB, history.
+   */
+  public long getStorageBits() {
+    return (long) n_words * n_bits
+         + (long) base.getSize() * base.getBitsPerWord()
+         + btb.getStorageBits()
+         + max_history;
+  }
+
+}
@@ -0,0 +1,160 @@
+/* TextBranchTrace.java - gshare.TextBranchTrace
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+
+
+/**
+ * TextBranchTrace - reads a branch trace in the hex text style of the
+ * memory files: one branch per line,
+ * <pre>
+ *   # comment
+ *   ; comment
+ *   0040012c 00400100 1
+ *   00400134:00400200 0
+ *   00400140 00400800 1 c
+ * </pre>
+ * with the branch address and target in hex, followed by the outcome
+ * (1, T or t for taken, 0, N or n for not taken) and optionally the
+ * branch kind (b for conditional, the default, c for call, r for
+ * return, i for indirect). Fields are separated by blanks, tabs, ':'
+ * or ','. Malformed lines are reported and skipped.
+ */
+public class TextBranchTrace implements BranchSource {
+
+  protected BufferedReader  reader;
+  protected String          name;
+  protected int             lineNumber;
+
+  protected long            pc, target;
+  protected boolean         taken;
+  protected int             kind;
+
+  // parse position inside the current line
+  private   int             pos;
+
+
+  public TextBranchTrace( String filename ) throws IOException {
+    this( new BufferedReader( new FileReader( filename ), 1 << 16 ), filename );
+  }
+
+  public TextBranchTrace( BufferedReader reader, String name ) {
+    this.reader = reader;
+    this.name   = name;
+  }
+
+
+  public boolean next() throws IOException {
+    String line;
+    while( (line = reader.readLine()) != null ) {
+      lineNumber++;
+      if (line.length() == 0)   continue;
+      if (line.startsWith( "#" )) continue;
+      if (line.startsWith( ";" )) continue;
+
+      pos = 0;
+      if (!skipSeparators( line )) continue;  // blank line
+
+      try {
+        pc     = parseHex( line );
+        target = parseHex( line );
+        taken  = parseTaken( line );
+        kind   = parseKind( line );
+        return true;
+      }
+      catch( NumberFormatException e ) {
+        System.err.println( "-E- " + name + ": " + e.getMessage()
+                            + " on line " + lineNumber + ": " + line );
+      }
+    }
+    return false;
+  }
+
+
+  public long getPC() {
+    return pc;
+  }
+
+  public long getTarget() {
+    return target;
+  }
+
+  public boolean isTaken() {
+    return taken;
+  }
+
+  public int getKind() {
+    return kind;
+  }
+
+  public int getLineNumber() {
+    return lineNumber;
+  }
+
+  public void close() throws IOException {
+    reader.close();
+  }
+
+
+  private static boolean isSeparator( char c ) {
+    return c == ' ' || c == '\t' || c == ':' || c == ',';
+  }
+
+  private boolean skipSeparators( String line ) {
+    int n = line.length();
+    while( pos < n && isSeparator( line.charAt( pos ))) pos++;
+    return pos < n;
+  }
+
+
+  private long parseHex( String line ) {
+    if (!skipSeparators( line )) {
+      throw new NumberFormatException( "missing field" );
+    }
+    int  n      = line.length();
+    int  start  = pos;
+    long value  = 0;
+    while( pos < n && !isSeparator( line.charAt( pos ))) {
+      int digit = Character.digit( line.charAt( pos ), 16 );
+      if (digit < 0) {
+        throw new NumberFormatException( "illegal hex digit '"
+                                         + line.charAt( pos ) + "'" );
+      }
+      value = (value << 4) | digit;
+      pos++;
+    }
+    if (pos - start > 16) {
+      throw new NumberFormatException( "hex value too long" );
+    }
+    return value;
+  }
+
+
+  private boolean parseTaken( String line ) {
+    if (!skipSeparators( line )) {
+      throw new NumberFormatException( "missing outcome" );
+    }
+    char c = line.charAt( pos++ );
+    if (c == '1' || c == 'T' || c == 't') return true;
+    if (c == '0' || c == 'N' || c == 'n') return false;
+    throw new NumberFormatException( "illegal outcome '" + c + "'" );
+  }
+
+
+  private int parseKind( String line ) {
+    if (!skipSeparators( line )) return CONDITIONAL;
+    char c = line.charAt( pos++ );
+    switch( Character.toLowerCase( c )) {
+      case 'b': return CONDITIONAL;
+      case 'c': return CALL;
+      case 'r': return RETURN;
+      case 'i': return INDIRECT;
+    }
+    throw new NumberFormatException( "illegal branch kind '" + c + "'" );
+  }
+
+}
@@ -0,0 +1,337 @@
+/* TournamentPredictor.java - gshare.TournamentPredictor
+ *
+ * 17.10.26 - dispose() the bimodal and gshare tables
+ * 17.10.26 - speculative gshare history follows the final prediction
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.PrintStream;
+
+import  jfig.utils.SetupManager;
+
+
+/**
+ * TournamentPredictor - a McFarling style combining predictor: a bimodal
+ * table of 2-bit counters indexed by the PC, a gshare table indexed by
+ * PC xor global history, and a chooser table of 2-bit counters indexed
+ * by the PC that selects between them.
+ * <p>
+ * The chooser counters are the words of this GenericMemory. The bimodal
+ * counters are a CounterTable, and the gshare part is a gshare in
+ * history mode, whose table also supplies the predicted target (PRED).
+ * configure() opens the memory editor for all of them.
+ * <p>
+ * The ports are those of gshare; nWE must be strobed for every resolved
+ * branch (3 = taken, 2 = not taken, 1 = invalidate the target entry).
+ * VP is the counter of the chosen sub-predictor. The chooser is trained
+ * towards the sub-predictor that was right when they disagree.
+ * <p>
+ * With checkpoints on the gshare part (gshare.setCheckpoints()), its
+ * speculative history is shifted with the final prediction, squash()
+ * is passed on to it, and the chooser is trained with the gshare
+ * counter of the history the branch was predicted with.
+ */
+public class TournamentPredictor extends PredictorComponent {
+
+  protected  int           chooser_bits;
+  protected  long          chooser_mask;
+  protected  int           bimodal_bits, history_bits;
+
+  protected  CounterTable  bimodal;
+  protected  gshare        global;
+
+  /* per resolved branch: which sub-predictor was chosen, and
+   * whether it was right
+   */
+  protected  long          n_chose_bimodal, n_chose_gshare;
+  protected  long          n_bimodal_right, n_gshare_right;
+
+
+  public TournamentPredictor() {
+    super();
+    bimodal_bits = SetupManager.getInteger( "Hades.TournamentPredictor.BimodalBits", 10 );
+    history_bits = SetupManager.getInteger( "Hades.TournamentPredictor.HistoryBits", 10 );
+    setGeometry( SetupManager.getInteger( "Hades.TournamentPredictor.ChooserBits", 10 ),
+                 bimodal_bits, history_bits );
+  }
+
+
+  /**
+   * 2^chooser_bits chooser counters, 2^bimodal_bits bimodal counters,
+   * and a gshare of history_bits with the default target table.
+   * All counters are 2 bits wide.
+   */
+  public void setGeometry( int chooser_bits, int bimodal_bits, int history_bits ) {
+    this.bimodal_bits = bimodal_bits;
+    this.history_bits = history_bits;
+    resize( 1 << chooser_bits, 2 );
+  }
+
+  public int getChooserBits() { return chooser_bits; }
+  public int getBimodalBits() { return bimodal_bits; }
+  public int getHistoryBits() { return history_bits; }
+
+  public CounterTable getBimodalTable() {
+    return bimodal;
+  }
+
+  public gshare getGshare() {
+    return global;
+  }
+
+
+  public boolean canChangeSize() {
+    return !isConnected();
+  }
+
+  public void setSize( int n_words ) {
+    resize( n_words, getBitsPerWord() );
+  }
+
+  public void setBitsPerWord( int n_bits ) {
+    resize( getSize(), n_bits );
+  }
+
+  public boolean resize( int n_words, int n_bits ) {
+    this.n_words = n_words;
+    this.n_bits  = n_bits;
+
+    createMemory();
+    initializeWithDefaultValues();
+
+    constructStandardValues();
+    constructPorts();
+    return true;
+  }
+
+
+  /**
+   * the chooser counters; n_words is rounded up to a power of two.
+   * Also (re)creates the bimodal and gshare tables.
+   */
+  public void createMemory() {
+    int cb = 0;
+    while ((1 << cb) < n_words && cb < 26) cb++;
+    n_words      = 1 << cb;
+    chooser_bits = cb;
+    chooser_mask = n_words - 1;
+    if (n_bits < 1) n_bits = 2;
+    if (history_bits < 1) history_bits = 1;
+
+    super.createMemory();
+
+    if (bimodal == null || bimodal.getIndexBits() != bimodal_bits) {
+      if (bimodal != null) bimodal.dispose();
+      bimodal = new CounterTable( bimodal_bits, 2 );
+      bimodal.setName( "bimodal" );
+    }
+    if (global == null || global.getHistoryBits() != history_bits) {
+      if (global != null) global.dispose();
+      global = new gshare();
+      global.setHistoryBits( history_bits );
+      global.setName( "gshare" );
+    }
+  }
+
+
+  public void dispose() {
+    super.dispose();
+    if (bimodal != null) bimodal.dispose();
+    if (global != null)  global.dispose();
+  }
+
+
+  /**
+   * chooser counters start weakly on the bimodal side.
+   */
+  public void initializeWithDefaultValues() {
+    fillWords( (1L << (n_bits-1)) - 1 );
+  }
+
+
+  /**
+   * options of the design file: bimodal= and history= bits;
+   * the chooser size is the memory size.
+   */
+  protected boolean setOption( String key, String value ) {
+    if      (key.equals( "bimodal" )) bimodal_bits = Integer.parseInt( value );
+    else if (key.equals( "history" )) history_bits = Integer.parseInt( value );
+    else return super.setOption( key, value );
+    return true;
+  }
+
+  protected String getOptions() {
+    return super.getOptions()
+         + " bimodal=" + bimodal_bits + " history=" + history_bits;
+  }
+
+  public boolean initialize( String s ) {
+    boolean ok = super.initialize( s );
+    if (resourcename == null || resourcename.length() == 0) {
+      initializeWithDefaultValues();  // instead of X
+    }
+    return ok;
+  }
+
+
+  public void configure() {
+    super.configure();
+    bimodal.configure();
+    global.getPatternHistoryTable().configure();
+    global.configure();
+  }
+
+
+  protected int getPCWidth()     { return global != null ? global.getPCWidth() : 12; }
+  protected int getTargetWidth() { return global != null ? global.getTargetWidth() : 12; }
+  protected int getVPWidth()     { return 2; }
+
+  protected String[] getSymbolLabel() {
+    return new String[] { "Tournament", "Predictor" };
+  }
+
+
+  /* the three tables, for the branch at word address pc */
+
+  protected final int chooserIndex( long pc ) {
+    return (int) (pc & chooser_mask);
+  }
+
+  protected final int bimodalIndex( long pc ) {
+    return (int) (pc & bimodal.getIndexMask());
+  }
+
+  protected final boolean useGshare( long pc ) {
+    return getDataAt( chooserIndex( pc )) >= (1L << (n_bits-1));
+  }
+
+
+  protected void fetch( long pcf ) {
+    int  ci = chooserIndex( pcf );
+    long c  = getDataAt( ci );
+    long counter;
+    if (c >= (1L << (n_bits-1))) {
+      counter = global.getPatternHistoryTable().getCounter( global.getHistoryIndex( pcf ));
+    }
+    else {
+      counter = bimodal.getCounter( bimodalIndex( pcf ));
+    }
+    out_VP   = vector_VP[(int) (counter & 3)];
+    out_PRED = getPredVector( global.peekLine( pcf ) & global.target_mask );
+    notifyReadListeners( ci, c );
+  }
+
+
+  protected void strobe( int nWE, long pcd, long destcd ) {
+    if (nWE == 3 || nWE == 2) {
+      boolean taken = (nWE == 3);
+      train( pcd, taken );
+    }
+    global.strobe( nWE, pcd, destcd );
+  }
+
+
+  /**
+   * count the choice, and train chooser and bimodal counters for the
+   * branch at word address pc; the gshare part is trained by the caller.
+   */
+  protected void train( long pc, boolean taken ) {
+    int     bi    = bimodalIndex( pc );
+    boolean p_bim = bimodal.isTaken( bi );
+    boolean p_gsh = global.getPatternHistoryTable().isTaken( global.getResolveIndex( pc ));
+    int     ci    = chooserIndex( pc );
+
+    if (getDataAt( ci ) >= (1L << (n_bits-1))) {
+      n_chose_gshare++;
+      if (p_gsh == taken) n_gshare_right++;
+    }
+    else {
+      n_chose_bimodal++;
+      if (p_bim == taken) n_bimodal_right++;
+    }
+
+    if (p_bim != p_gsh) {
+      long old_c = getDataAt( ci );
+      long new_c = old_c;
+      if (p_gsh == taken) { if (old_c < bit_mask) new_c = old_c + 1; }
+      else                { if (old_c > 0)        new_c = old_c - 1; }
+      if (new_c != old_c) {
+        setDataAt( ci, new_c );
+        notifyWriteListeners( ci, old_c, new_c );
+      }
+    }
+    bimodal.train( bi, taken );
+  }
+
+
+  protected void resetPredictor() {
+    initializeWithDefaultValues();
+    bimodal.initializeWithDefaultValues();
+    global.resetHistory();
+  }
+
+
+  protected void timeStep( double time ) {
+    listenerTimeStep( time );
+    bimodal.listenerTimeStep( time );
+    global.timeStep( time );
+  }
+
+
+  /* BranchPredictor, byte addresses as in gshare */
+
+  public boolean predict( long pc ) {
+    long    pcw   = (pc >>> 2) & global.getPCMask();
+    boolean p_gsh = global.predict( pc );
+    boolean p     = useGshare( pcw ) ? p_gsh
+                                     : bimodal.isTaken( bimodalIndex( pcw ));
+    global.setSpeculativeOutcome( p );
+    return p;
+  }
+
+  /**
+   * drop the speculative history of the gshare part.
+   */
+  public void squash() {
+    global.squash();
+  }
+
+  public long getPredictedTarget() {
+    return global.getPredictedTarget();
+  }
+
+  public void update( long pc, long target, boolean taken ) {
+    train( (pc >>> 2) & global.getPCMask(), taken );
+    global.update( pc, target, taken );
+  }
+
+
+  public long getBimodalChosen()  { return n_chose_bimodal; }
+  public long getGshareChosen()   { return n_chose_gshare; }
+  public long getBimodalCorrect() { return n_bimodal_right; }
+  public long getGshareCorrect()  { return n_gshare_right; }
+
+
+  public void printReport( PrintStream ps ) {
+    long n = n_chose_bimodal + n_chose_gshare;
+    ps.println( "chose bimodal    " + n_chose_bimodal
+                + String.format( " (%.2f %%), correct %d",
+                    100.0 * n_chose_bimodal / Math.max( 1, n ), n_bimodal_right ));
+    ps.println( "chose gshare     " + n_chose_gshare
+                + String.format( " (%.2f %%), correct %d",
+                    100.0 * n_chose_gshare / Math.max( 1, n ), n_gshare_right ));
+  }
+
+
+  /**
+   * storage in bits: chooser, bimodal and gshare tables.
+   */
+  public long getStorageBits() {
+    return (long) n_words * n_bits
+         + (long) bimodal.getSize() * bimodal.getBitsPerWord()
+         + global.getStorageBits();
+  }
+
+}
@@ -0,0 +1,526 @@
+/* TraceEngine.java - gshare.TraceEngine
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+
+
+/**
+ * TraceEngine - runs a branch trace through a BranchPredictor without
+ * the Hades simulator. For the gshare component, predict() and update()
+ * use the same table lookup and nWE write paths as gshare.evaluate(),
+ * directly on the GenericMemory words, so the results match a run of
+ * the component inside a Hades schedule.
+ * <p>
+ * Usage: <code>java gshare.TraceEngine [-size n_words] [-index bits]
+ * [-tag bits] [-target bits] [-counter bits] [-ways n] [-replacement lru|plru|random]
+ * [-history bits] [-tournament chooser_bits bimodal_bits]
+ * [-tage n_tables max_history] [-depth n [-speculative]]
+ * [-ras depth [wrap|discard]] [-indirect index_bits history_bits] tracefile</code>
+ * <br>
+ * With -tournament, a TournamentPredictor is run, whose gshare part
+ * uses the -history bits (default 10). With -tage, a TagePredictor is
+ * run; the geometry options then apply to its target table.
+ * -depth keeps n branches in flight, see setDepth(); -speculative then
+ * makes gshare update its history at predict time. TagePredictor keeps
+ * no checkpoints, so -speculative is rejected with -tage.
+ * <p>
+ * Branches are routed by their BranchSource kind, see
+ * setReturnStack() and setIndirectCache(); the report then has the
+ * mispredictions per kind.
+ */
+public class TraceEngine {
+
+  protected BranchPredictor  predictor;
+  protected ReturnAddressStack   ras;
+  protected IndirectTargetCache  itc;
+
+  protected long   n_branches, n_taken;
+  protected long   n_direction_miss, n_target_miss;
+  protected long   elapsed_nanos;
+  protected long   kind_branches[] = new long[4];
+  protected long   kind_misses[]   = new long[4];
+
+  /* the last predictBranch() */
+  protected long     predicted_target;
+  protected boolean  predicted_by_table;
+
+  /* pipeline model, see setDepth() */
+  protected int    depth;
+  protected long   n_flushes;
+
+
+  public TraceEngine( BranchPredictor predictor ) {
+    this.predictor = predictor;
+  }
+
+
+  /**
+   * predict returns from ras, when it holds a prediction, and push the
+   * return address of each call. A speculative ras (see
+   * ReturnAddressStack.setCheckpoints()) pushes and pops at predict
+   * time and is squashed with the predictor; otherwise the stack changes
+   * at resolve, so with setDepth() a return predicted before the resolve
+   * of its call sees the older stack.
+   */
+  public void setReturnStack( ReturnAddressStack ras ) {
+    this.ras = ras;
+  }
+
+  /**
+   * predict indirect jumps from itc, on a tag hit, and train itc with
+   * every resolved indirect jump.
+   */
+  public void setIndirectCache( IndirectTargetCache itc ) {
+    this.itc = itc;
+  }
+
+
+  /**
+   * keep depth branches in flight: each branch is predicted depth-1
+   * branches before the oldest one is resolved, and a misprediction
+   * squashes and re-predicts all younger branches. depth <= 1 resolves
+   * every branch right after its prediction.
+   */
+  public void setDepth( int depth ) {
+    this.depth = depth;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * the number of mispredictions that re-predicted younger branches.
+   */
+  public long getFlushCount() {
+    return n_flushes;
+  }
+
+
+  /**
+   * feed all records of source to the predictor, and accumulate the
+   * statistics. May be called repeatedly to concatenate traces.
+   */
+  public void run( BranchSource source ) throws IOException {
+    if (depth > 1) {
+      runPipelined( source );
+      return;
+    }
+    BranchPredictor P = predictor;
+
+    long branches = 0, taken = 0, direction_miss = 0, target_miss = 0;
+    long start = System.nanoTime();
+
+    boolean routed = (ras != null || itc != null);
+
+    while( source.next() ) {
+      long    pc     = source.getPC();
+      long    target = source.getTarget();
+      boolean actual = source.isTaken();
+      int     kind   = source.getKind();
+
+      boolean predicted;
+      long    ptarget;
+      if (routed) {
+        predicted = predictBranch( kind, pc );
+        ptarget   = predicted_target;
+      }
+      else {
+        predicted = P.predict( pc );
+        ptarget   = P.getPredictedTarget();
+      }
+
+      boolean miss = true;
+      if (predicted != actual) {
+        direction_miss++;
+      }
+      else if (actual && ptarget != (target & ~3L)) {
+        target_miss++;
+      }
+      else miss = false;
+
+      if (routed) resolveBranch( kind, pc, target, actual, predicted_by_table );
+      else        P.update( pc, target, actual );
+
+      branches++;
+      if (actual) taken++;
+      kind_branches[kind]++;
+      if (miss) kind_misses[kind]++;
+    }
+
+    elapsed_nanos    += System.nanoTime() - start;
+    n_branches       += branches;
+    n_taken          += taken;
+    n_direction_miss += direction_miss;
+    n_target_miss    += target_miss;
+  }
+
+
+  /**
+   * predict the branch at pc by its kind: returns and indirect jumps
+   * from ras and itc when they have a prediction, everything else
+   * from the predictor. Sets predicted_target and predicted_by_table.
+   */
+  protected final boolean predictBranch( int kind, long pc ) {
+    if (kind == BranchSource.CALL && ras != null && ras.isSpeculative()) {
+      ras.push( pc + 4 );
+    }
+    else if (kind == BranchSource.RETURN && ras != null && ras.predict( pc )) {
+      predicted_target   = ras.getPredictedTarget();
+      predicted_by_table = false;
+      return true;
+    }
+    if (kind == BranchSource.INDIRECT && itc != null && itc.predict( pc )) {
+      predicted_target   = itc.getPredictedTarget();
+      predicted_by_table = false;
+      return true;
+    }
+    boolean p = predictor.predict( pc );
+    predicted_target   = predictor.getPredictedTarget();
+    predicted_by_table = true;
+    return p;
+  }
+
+  /**
+   * train with the resolved branch: the predictor, if it made the
+   * prediction, and ras or itc by the kind.
+   */
+  protected final void resolveBranch( int kind, long pc, long target,
+                                      boolean actual, boolean by_table )
+  {
+    if (by_table) predictor.update( pc, target, actual );
+    if (kind == BranchSource.CALL) {
+      if (ras != null) {
+        if (ras.isSpeculative()) ras.update( pc, target, actual );
+        else                     ras.push( pc + 4 );
+      }
+    }
+    else if (kind == BranchSource.RETURN) {
+      if (ras != null) ras.update( pc, target, actual );
+    }
+    else if (kind == BranchSource.INDIRECT) {
+      if (itc != null) itc.update( pc, target, actual );
+    }
+  }
+
+
+  /**
+   * run() with depth branches in flight, kept in a ring of primitive
+   * arrays.
+   */
+  protected void runPipelined( BranchSource source ) throws IOException {
+    BranchPredictor P = predictor;
+
+    int       n         = depth;
+    long      pc[]      = new long[n];
+    long      target[]  = new long[n];
+    boolean   actual[]  = new boolean[n];
+    int       kind[]    = new int[n];
+    boolean   pred[]    = new boolean[n];
+    long      ptarget[] = new long[n];
+    boolean   table[]   = new boolean[n];
+    int       head = 0, count = 0;
+
+    long branches = 0, taken = 0, direction_miss = 0, target_miss = 0;
+    long flushes = 0;
+    long start = System.nanoTime();
+
+    boolean more = true;
+    while( more || count > 0 ) {
+      if (more && count < n) {
+        more = source.next();
+        if (more) {
+          int i = (head + count) % n;
+          pc[i]      = source.getPC();
+          target[i]  = source.getTarget();
+          actual[i]  = source.isTaken();
+          kind[i]    = source.getKind();
+          pred[i]    = predictBranch( kind[i], pc[i] );
+          ptarget[i] = predicted_target;
+          table[i]   = predicted_by_table;
+          count++;
+          continue;
+        }
+      }
+
+      // resolve the oldest branch
+      int     i    = head;
+      boolean miss = false;
+      if (pred[i] != actual[i]) {
+        direction_miss++;
+        miss = true;
+      }
+      else if (actual[i] && ptarget[i] != (target[i] & ~3L)) {
+        target_miss++;
+        miss = true;
+      }
+      resolveBranch( kind[i], pc[i], target[i], actual[i], table[i] );
+
+      branches++;
+      if (actual[i]) taken++;
+      kind_branches[kind[i]]++;
+      if (miss) kind_misses[kind[i]]++;
+      head = (head + 1) % n;
+      count--;
+
+      if (miss && count > 0) {
+        flushes++;
+        P.squash();
+        if (ras != null) ras.squash();
+        for( int k=0; k < count; k++ ) {
+          int j = (head + k) % n;
+          pred[j]    = predictBranch( kind[j], pc[j] );
+          ptarget[j] = predicted_target;
+          table[j]   = predicted_by_table;
+        }
+      }
+    }
+
+    elapsed_nanos    += System.nanoTime() - start;
+    n_branches       += branches;
+    n_taken          += taken;
+    n_direction_miss += direction_miss;
+    n_target_miss    += target_miss;
+    n_flushes        += flushes;
+  }
+
+
+  public long getBranchCount() {
+    return n_branches;
+  }
+
+  public long getDirectionMispredictions() {
+    return n_direction_miss;
+  }
+
+  public long getTargetMispredictions() {
+    return n_target_miss;
+  }
+
+  /**
+   * fraction of branches predicted with correct direction and,
+   * for taken branches, correct target.
+   */
+  public double getAccuracy() {
+    if (n_branches == 0) return 0.0;
+    return 1.0 - (double) (n_direction_miss + n_target_miss) / n_branches;
+  }
+
+  /**
+   * the number of branches and mispredictions of a BranchSource kind.
+   */
+  public long getBranchCount( int kind ) {
+    return kind_branches[kind];
+  }
+
+  public long getMispredictions( int kind ) {
+    return kind_misses[kind];
+  }
+
+  public double getBranchesPerSecond() {
+    if (elapsed_nanos == 0) return 0.0;
+    return n_branches * 1.0E9 / elapsed_nanos;
+  }
+
+
+  public void printReport( PrintStream ps ) {
+    ps.println( "branches         " + n_branches );
+    ps.println( "taken            " + n_taken );
+    ps.println( "direction misses " + n_direction_miss );
+    ps.println( "target misses    " + n_target_miss );
+    ps.println( "accuracy         "
+                + String.format( "%.4f %%", 100.0 * getAccuracy() ));
+    if (n_branches != kind_branches[BranchSource.CONDITIONAL]) {
+      String names[] = { "conditional", "call", "return", "indirect" };
+      for( int k=0; k < 4; k++ ) {
+        if (kind_branches[k] == 0) continue;
+        ps.println( String.format( "%-16s %d, misses %d", names[k],
+                                   kind_branches[k], kind_misses[k] ));
+      }
+    }
+    if (depth > 1) {
+      ps.println( "depth            " + depth + ", flushes " + n_flushes );
+    }
+    ps.println( "time             "
+                + String.format( "%.3f s", elapsed_nanos * 1.0E-9 ));
+    ps.println( "branches/sec     "
+                + String.format( "%.0f", getBranchesPerSecond() ));
+  }
+
+
+  /**
+   * open a trace file, binary (see BinaryBranchTrace) or hex text.
+   */
+  public static BranchSource openTrace( String filename ) throws IOException {
+    if (BinaryBranchTrace.isBinaryTrace( filename )) {
+      return new BinaryBranchTrace( filename );
+    }
+    return new TextBranchTrace( filename );
+  }
+
+
+  public static void usage() {
+    System.err.println( "Usage: java gshare.TraceEngine [-size n_words] "
+                        + "[-index bits] [-tag bits] [-target bits] "
+                        + "[-counter bits] [-ways n] "
+                        + "[-replacement lru|plru|random] "
+                        + "[-history bits] "
+                        + "[-tournament chooser_bits bimodal_bits] "
+                        + "[-tage n_tables max_history] "
+                        + "[-depth n [-speculative]] "
+                        + "[-ras depth [wrap|discard]] "
+                        + "[-indirect index_bits history_bits] tracefile" );
+    System.exit( 1 );
+  }
+
+
+  public static void main( String argv[] ) throws Exception {
+    int    n_index  = 8, n_tag = 4, n_target = 12, n_counter = 2;
+    int    n_hist   = 0;
+    int    n_ways   = 1;
+    int    policy   = ReplacementPolicy.LRU;
+    int    n_chooser = 0, n_bimodal = 0;
+    int    n_tage    = 0, n_tage_history = 0;
+    int    n_depth   = 0;
+    boolean speculative = false;
+    int    n_ras     = 0, ras_overflow = ReturnAddressStack.OVERFLOW_WRAP;
+    int    n_itc     = 0, n_itc_history = 0;
+    String filename = null;
+
+    for( int i=0; i < argv.length; i++ ) {
+      if      (argv[i].equals( "-size" ) && i+1 < argv.length) {
+        int n_words = Integer.parseInt( argv[++i] );
+        for( n_index=0; (1 << n_index) < n_words; n_index++ ) ;
+      }
+      else if (argv[i].equals( "-index" ) && i+1 < argv.length) {
+        n_index = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-tag" ) && i+1 < argv.length) {
+        n_tag = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-target" ) && i+1 < argv.length) {
+        n_target = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-counter" ) && i+1 < argv.length) {
+        n_counter = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-ways" ) && i+1 < argv.length) {
+        n_ways = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-replacement" ) && i+1 < argv.length) {
+        policy = ReplacementPolicy.parse( argv[++i] );
+        if (policy < 0) usage();
+      }
+      else if (argv[i].equals( "-history" ) && i+1 < argv.length) {
+        n_hist = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-tournament" ) && i+2 < argv.length) {
+        n_chooser = Integer.parseInt( argv[++i] );
+        n_bimodal = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-tage" ) && i+2 < argv.length) {
+        n_tage         = Integer.parseInt( argv[++i] );
+        n_tage_history = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-depth" ) && i+1 < argv.length) {
+        n_depth = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].equals( "-speculative" )) {
+        speculative = true;
+      }
+      else if (argv[i].equals( "-ras" ) && i+1 < argv.length) {
+        n_ras = Integer.parseInt( argv[++i] );
+        if (i+1 < argv.length
+            && ReturnAddressStack.parseOverflowPolicy( argv[i+1] ) >= 0) {
+          ras_overflow = ReturnAddressStack.parseOverflowPolicy( argv[++i] );
+        }
+      }
+      else if (argv[i].equals( "-indirect" ) && i+2 < argv.length) {
+        n_itc         = Integer.parseInt( argv[++i] );
+        n_itc_history = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].startsWith( "-" )) usage();
+      else filename = argv[i];
+    }
+    if (filename == null) usage();
+    if (speculative && n_tage > 0) {
+      System.err.println( "-E- -speculative is not supported with -tage" );
+      System.exit( 1 );
+    }
+
+    gshare              table;
+    TournamentPredictor tournament = null;
+    TagePredictor       tage       = null;
+    if (n_tage > 0) {
+      tage = new TagePredictor();
+      tage.setGeometry( n_tage, tage.getTableBits(), tage.getTagBits(),
+                        Math.min( 4, n_tage_history ), n_tage_history, 12 );
+      table = tage.getTargetTable();
+    }
+    else if (n_chooser > 0) {
+      tournament = new TournamentPredictor();
+      tournament.setGeometry( n_chooser, n_bimodal, (n_hist > 0) ? n_hist : 10 );
+      table = tournament.getGshare();
+    }
+    else {
+      table = new gshare();
+      table.setHistoryBits( n_hist );
+    }
+    table.setReplacementPolicy( policy );
+    if (!table.setWays( n_ways )
+        || !table.setGeometry( n_index, n_tag, n_target, n_counter ))
+    {
+      System.err.println( "-E- illegal geometry: " + n_ways + " ways, "
+                          + n_index + "/" + n_tag + "/" + n_target + "/"
+                          + n_counter + " bits" );
+      System.exit( 1 );
+    }
+
+    BranchPredictor predictor = (tournament != null) ? (BranchPredictor) tournament
+                              : (tage != null)       ? (BranchPredictor) tage : table;
+    if (speculative) table.setCheckpoints( Math.max( 1, n_depth ));
+
+    TraceEngine     engine = new TraceEngine( predictor );
+    engine.setDepth( n_depth );
+
+    ReturnAddressStack  ras = null;
+    IndirectTargetCache itc = null;
+    if (n_ras > 0) {
+      ras = new ReturnAddressStack();
+      ras.setOverflowPolicy( ras_overflow );
+      ras.resize( n_ras, 30 );              // full 32-bit return addresses
+      if (speculative) ras.setCheckpoints( Math.max( 1, n_depth ));
+      engine.setReturnStack( ras );
+    }
+    if (n_itc > 0) {
+      itc = new IndirectTargetCache();
+      itc.setGeometry( n_itc, table.getTagBits(), table.getTargetBits() );
+      itc.setHistoryBits( n_itc_history );
+      engine.setIndirectCache( itc );
+    }
+    BranchSource    trace  = openTrace( filename );
+    try {
+      engine.run( trace );
+    }
+    finally {
+      trace.close();
+    }
+    engine.printReport( System.out );
+    if (tournament != null) tournament.printReport( System.out );
+    if (tage != null)       tage.printReport( System.out );
+    if (speculative) {
+      System.out.println( "history repairs  " + table.getRepairCount() );
+    }
+    if (ras != null) ras.printReport( System.out );
+    if (itc != null) itc.printReport( System.out );
+    table.getMetrics().print( System.out );
+    System.out.println( "storage bits     "
+      + ((tournament != null) ? tournament.getStorageBits()
+       : (tage != null)       ? tage.getStorageBits() : table.getStorageBits() ));
+  }
+
+}
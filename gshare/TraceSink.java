@@ -0,0 +1,235 @@
+/* TraceSink.java - gshare.TraceSink
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+import  java.util.Vector;
+
+
+/**
+ * TraceSink - buffered, asynchronous writer for predictor trace records.
+ * <p>
+ * Each record is a kind code, the simulation time and four long
+ * arguments. record() only copies these into a ring buffer of primitives;
+ * formatting and file I/O happen on a daemon writer thread. When the ring
+ * is full, record() waits for the writer, so no records are lost.
+ * <p>
+ * The output is either CSV (<code>kind,time,pc,line,data,extra</code>) or
+ * a binary stream of (byte kind, double time, 4 x long) records.
+ * All open sinks are flushed and closed on JVM shutdown.
+ */
+public class TraceSink implements Runnable {
+
+  /* trace levels, see gshare.setTraceLevel() */
+  public final static int  OFF     = 0;
+  public final static int  WRITES  = 1;
+  public final static int  LOOKUPS = 2;
+
+  /* record kinds */
+  public final static int  LOOKUP  = 1;
+  public final static int  WRITE   = 2;
+
+  public final static String  KIND_NAMES[] = { "?", "lookup", "write" };
+
+  public final static int  FORMAT_CSV    = 0;
+  public final static int  FORMAT_BINARY = 1;
+
+  private final static int  RECORD_SIZE = 6;  // longs per record
+
+  private   String           filename;
+  private   int              format;
+  private   DataOutputStream out;
+
+  private   long             ring[];
+  private   int              capacity;        // in records
+  private   long             head, tail;      // record counters
+  private   boolean          closed;
+  private   Thread           writer;
+  private   IOException      failure;
+
+  private static Vector<TraceSink>  openSinks = new Vector<TraceSink>();
+  private static Thread             shutdownHook;
+
+
+  public TraceSink( String filename, int format, int capacity )
+         throws IOException
+  {
+    this.filename = filename;
+    this.format   = format;
+    this.capacity = capacity;
+    this.ring     = new long[ capacity * RECORD_SIZE ];
+    this.out      = new DataOutputStream( new BufferedOutputStream(
+                      new FileOutputStream( filename ), 1 << 16 ));
+
+    if (format == FORMAT_CSV) {
+      out.writeBytes( "kind,time,pc,line,data,extra\n" );
+    }
+
+    writer = new Thread( this, "TraceSink " + filename );
+    writer.setDaemon( true );
+    writer.start();
+    register( this );
+  }
+
+
+  /**
+   * return the open sink for filename, or open a new one: binary if
+   * the name ends with ".bin", CSV otherwise. Components that trace to
+   * the same file share one sink.
+   */
+  public static synchronized TraceSink open( String filename )
+         throws IOException
+  {
+    for( int i=0; i < openSinks.size(); i++ ) {
+      TraceSink sink = openSinks.elementAt( i );
+      if (sink.filename.equals( filename )) return sink;
+    }
+    int format = filename.endsWith( ".bin" ) ? FORMAT_BINARY : FORMAT_CSV;
+    return new TraceSink( filename, format, 1 << 16 );
+  }
+
+
+  /**
+   * append one record; only blocks while the ring buffer is full.
+   */
+  public synchronized void record( int kind, double time,
+                                   long pc, long line, long data, long extra )
+  {
+    if (closed) return;
+    while( head - tail >= capacity ) {
+      try { wait(); }
+      catch( InterruptedException e ) { return; }
+      if (closed) return;
+    }
+    int i = (int) (head % capacity) * RECORD_SIZE;
+    ring[i]   = kind;
+    ring[i+1] = Double.doubleToRawLongBits( time );
+    ring[i+2] = pc;
+    ring[i+3] = line;
+    ring[i+4] = data;
+    ring[i+5] = extra;
+    head++;
+    if (head - tail == 1) notifyAll();   // writer may be idle
+  }
+
+
+  /**
+   * writer thread: drain the ring in batches, then write them out
+   * without holding the lock.
+   */
+  public void run() {
+    long batch[] = new long[ ring.length ];
+    try {
+      while( true ) {
+        int  n = 0;
+        synchronized( this ) {
+          if (head == tail && !closed) {
+            wait( 100 );
+          }
+          if (head == tail && closed) break;
+
+          n = (int) (head - tail);
+          for( int k=0; k < n; k++ ) {
+            int i = (int) ((tail + k) % capacity) * RECORD_SIZE;
+            System.arraycopy( ring, i, batch, k * RECORD_SIZE, RECORD_SIZE );
+          }
+          tail = head;
+          notifyAll();  // wake up a blocked record()
+        }
+
+        if (n == 0) {   // idle, make the file current
+          out.flush();
+          continue;
+        }
+        for( int k=0; k < n; k++ ) {
+          writeRecord( batch, k * RECORD_SIZE );
+        }
+      }
+      out.flush();
+    }
+    catch( IOException e ) {
+      failure = e;
+      System.err.println( "-E- TraceSink " + filename + ": " + e );
+      synchronized( this ) { closed = true; notifyAll(); }
+    }
+    catch( InterruptedException e ) {
+      // exit
+    }
+    finally {
+      try { out.close(); } catch( IOException e ) { }
+    }
+  }
+
+
+  private void writeRecord( long buf[], int i ) throws IOException {
+    int    kind = (int) buf[i];
+    double time = Double.longBitsToDouble( buf[i+1] );
+
+    if (format == FORMAT_BINARY) {
+      out.writeByte( kind );
+      out.writeDouble( time );
+      out.writeLong( buf[i+2] );
+      out.writeLong( buf[i+3] );
+      out.writeLong( buf[i+4] );
+      out.writeLong( buf[i+5] );
+    }
+    else {
+      out.writeBytes( (kind > 0 && kind < KIND_NAMES.length)
+                      ? KIND_NAMES[kind] : Integer.toString( kind ));
+      out.writeByte( ',' );
+      out.writeBytes( Double.toString( time ));
+      for( int k=2; k < RECORD_SIZE; k++ ) {
+        out.writeByte( ',' );
+        out.writeBytes( Long.toHexString( buf[i+k] ));
+      }
+      out.writeByte( '\n' );
+    }
+  }
+
+
+  /**
+   * write all pending records and close the file.
+   */
+  public void close() {
+    synchronized( this ) {
+      if (closed && writer == null) return;
+      closed = true;
+      notifyAll();
+    }
+    try {
+      if (writer != null) writer.join();
+    }
+    catch( InterruptedException e ) { }
+    writer = null;
+    openSinks.removeElement( this );
+  }
+
+
+  public String getFilename() {
+    return filename;
+  }
+
+  public IOException getFailure() {
+    return failure;
+  }
+
+
+  private static synchronized void register( TraceSink sink ) {
+    openSinks.addElement( sink );
+    if (shutdownHook == null) {
+      shutdownHook = new Thread( "TraceSink shutdown" ) {
+        public void run() {
+          TraceSink sinks[] = openSinks.toArray( new TraceSink[0] );
+          for( int i=0; i < sinks.length; i++ ) {
+            sinks[i].close();
+          }
+        }
+      };
+      Runtime.getRuntime().addShutdownHook( shutdownHook );
+    }
+  }
+
+}
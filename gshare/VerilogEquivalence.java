@@ -0,0 +1,325 @@
+/* VerilogEquivalence.java - gshare.VerilogEquivalence
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+import  java.io.*;
+
+
+/**
+ * VerilogEquivalence - checks the gshare model against the Verilog
+ * predictor. verilog/tb_preditor_gshare.v runs a branch trace through
+ * preditor_gshare.v and logs, for each branch, the table index, the
+ * history, the counter and the prediction; this class runs the same
+ * trace through a gshare with history_bits = gshare_tam, via predict()
+ * and update(), and compares every field of every branch with the log.
+ * <p>
+ * At the first divergence, check() stops and printDivergence() dumps
+ * the expected and actual fields, the last branches before it, the
+ * history and the whole counter table of the Java model, and the
+ * entries that differ from the Verilog table if the log has a
+ * "# estado" dump for that branch (see +dumpat= of the testbench).
+ * <p>
+ * Usage: <code>java gshare.VerilogEquivalence [-bits gshare_tam]
+ * tracefile golden.log</code>
+ * <br>
+ * The exit code is 0 if model and log agree, 1 otherwise.
+ * verilog/check_equivalence.sh runs the check on the hand-derived
+ * reference log verilog/ref/golden.log; "##" lines are comments.
+ */
+public class VerilogEquivalence {
+
+  /* the fields of a log line */
+  public final static int  PC = 0, INDEX = 1, HISTORY = 2, COUNTER = 3,
+                           PREDICTION = 4, N_FIELDS = 5;
+  public final static String fieldNames[] =
+    { "pc", "index", "history", "counter", "prediction" };
+
+  /* log values that are not hex digits, as 'x' or 'z' */
+  protected final static long  UNDEFINED = -1;
+
+  protected final static int   CONTEXT = 8;
+
+  protected gshare         model;
+  protected int            bits;
+
+  protected long           n_branches;
+  protected long           elapsed_nanos;
+
+  /* the last CONTEXT branches: the log lines and the model fields */
+  protected String         context_log[]   = new String[CONTEXT];
+  protected long           context_model[] = new long[CONTEXT * N_FIELDS];
+  protected long           context_count;
+
+  /* the first divergence */
+  protected long           diverged_at = -1;
+  protected String         divergence;
+  protected long           expected[]  = new long[N_FIELDS];
+  protected long           actual[]    = new long[N_FIELDS];
+
+  /* the Verilog table of the last "# estado" dump, and its branch */
+  protected long           verilog_table[];
+  protected long           verilog_table_at = -1;
+
+  /* parse position in the current log line */
+  private   int            pos;
+
+
+  /**
+   * a gshare with the counter table of preditor_gshare.v with
+   * gshare_tam = bits, after reset: all counters tomado, history 0.
+   */
+  public VerilogEquivalence( int bits ) {
+    this.bits = bits;
+    model = new gshare();
+    if (bits > 12) model.setGeometry( bits - 4, 4, 12, 2 );  // PC wide enough
+    model.setHistoryBits( bits );
+    verilog_table = new long[1 << bits];
+  }
+
+  public gshare getModel() {
+    return model;
+  }
+
+
+  /**
+   * run trace through the model and compare with the golden log.
+   * Return true if all branches agree; otherwise, the divergence is
+   * kept for printDivergence().
+   */
+  public boolean check( BranchSource trace, BufferedReader golden )
+         throws IOException
+  {
+    gshare        G   = model;
+    CounterTable  pht = G.getPatternHistoryTable();
+    long          pc_mask = G.getPCMask();
+    long          hist_mask = (1L << bits) - 1;
+    long          f[] = actual;
+    long          n   = 0;
+    long          start = System.nanoTime();
+
+    try {
+      while( trace.next() ) {
+        String line = nextBranchLine( golden, n );
+        if (line == null) {
+          diverge( n, "the log ends before the trace" );
+          return false;
+        }
+
+        long pc    = trace.getPC();
+        long pcf   = (pc >>> 2) & pc_mask;
+        int  index = G.getHistoryIndex( pcf );
+        f[PC]         = pc;
+        f[INDEX]      = index;
+        f[HISTORY]    = G.getHistory() & hist_mask;
+        f[COUNTER]    = pht.getCounter( index );
+        f[PREDICTION] = G.predict( pc ) ? 1 : 0;
+
+        int c = (int) (n % CONTEXT);
+        context_log[c] = line;
+        System.arraycopy( f, 0, context_model, c * N_FIELDS, N_FIELDS );
+        context_count  = n + 1;
+
+        if (!parseBranch( line, n )) {
+          diverge( n, "malformed log line: " + line );
+          return false;
+        }
+        for( int k=0; k < N_FIELDS; k++ ) {
+          if (expected[k] != f[k]) {
+            diverge( n, (k == PC) ? "trace and log differ" : "model and log differ" );
+            return false;
+          }
+        }
+
+        G.update( pc, trace.getTarget(), trace.isTaken() );
+        n++;
+      }
+      if (nextBranchLine( golden, n ) != null) {
+        diverge( n, "the trace ends before the log" );
+        return false;
+      }
+      return true;
+    }
+    finally {
+      n_branches     = n;
+      elapsed_nanos += System.nanoTime() - start;
+    }
+  }
+
+
+  protected void diverge( long n, String why ) {
+    diverged_at = n;
+    divergence  = why;
+  }
+
+  public long getBranchCount() {
+    return n_branches;
+  }
+
+  /**
+   * the number of the first diverging branch, or -1.
+   */
+  public long getDivergence() {
+    return diverged_at;
+  }
+
+
+  /**
+   * return the next branch line of the log, reading "# estado" table
+   * dumps on the way; null at the end of the log.
+   */
+  protected String nextBranchLine( BufferedReader golden, long n )
+            throws IOException
+  {
+    String line;
+    while( (line = golden.readLine()) != null ) {
+      if (line.length() == 0) continue;
+      if (line.charAt( 0 ) != '#') return line;
+      if (line.startsWith( "# estado" )) {
+        pos = 8;
+        long i = parseField( line, 10 );
+        long v = parseField( line, 16 );
+        if (i >= 0 && i < verilog_table.length) verilog_table[(int) i] = v;
+        verilog_table_at = n;
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * parse "n pc index history counter prediction" into expected[].
+   */
+  protected boolean parseBranch( String line, long n ) {
+    pos = 0;
+    if (parseField( line, 10 ) != n) return false;
+    for( int k=0; k < N_FIELDS; k++ ) {
+      if (pos >= line.length()) return false;
+      expected[k] = parseField( line, 16 );
+    }
+    return true;
+  }
+
+  /**
+   * parse the next blank separated field in radix, UNDEFINED if it
+   * has other characters than digits, as x or z bits.
+   */
+  protected long parseField( String line, int radix ) {
+    int n = line.length();
+    while( pos < n && line.charAt( pos ) == ' ' ) pos++;
+    long    value   = 0;
+    boolean defined = pos < n;
+    while( pos < n && line.charAt( pos ) != ' ' ) {
+      int digit = Character.digit( line.charAt( pos++ ), radix );
+      if (digit < 0) defined = false;
+      else value = value * radix + digit;
+    }
+    return defined ? value : UNDEFINED;
+  }
+
+
+  protected static String format( long v ) {
+    return (v == UNDEFINED) ? "x" : Long.toHexString( v );
+  }
+
+
+  public void printDivergence( PrintStream ps ) {
+    if (diverged_at < 0) return;
+    ps.println( "-E- branch " + diverged_at + ": " + divergence );
+    if (divergence.endsWith( "differ" )) {
+      for( int k=0; k < N_FIELDS; k++ ) {
+        ps.println( String.format( "    %-10s  log %-16s model %-16s%s",
+                    fieldNames[k], format( expected[k] ), format( actual[k] ),
+                    (expected[k] != actual[k]) ? "  <--" : "" ));
+      }
+    }
+
+    ps.println( "last branches (log / model: pc index history counter prediction):" );
+    for( long n = Math.max( 0, context_count - CONTEXT ); n < context_count; n++ ) {
+      int c = (int) (n % CONTEXT);
+      StringBuffer sb = new StringBuffer( "    " + context_log[c] + "  /" );
+      for( int k=0; k < N_FIELDS; k++ ) {
+        sb.append( ' ' ).append( format( context_model[c * N_FIELDS + k] ));
+      }
+      ps.println( sb );
+    }
+
+    CounterTable pht = model.getPatternHistoryTable();
+    ps.println( "model history " + Long.toHexString( model.getHistory() )
+                + ", counters (index: 64 per line):" );
+    for( int i=0; i < pht.getSize(); i += 64 ) {
+      StringBuffer sb = new StringBuffer( String.format( "    %5x:", i ));
+      for( int j=i; j < i+64 && j < pht.getSize(); j++ ) {
+        if ((j & 15) == 0) sb.append( ' ' );
+        sb.append( (char) ('0' + pht.getCounter( j )) );
+      }
+      ps.println( sb );
+    }
+
+    if (verilog_table_at == diverged_at) {
+      int n_diff = 0;
+      for( int i=0; i < pht.getSize(); i++ ) {
+        if (verilog_table[i] != pht.getCounter( i )) {
+          if (n_diff++ < 32) {
+            ps.println( String.format( "    estado[%x] log %s model %x", i,
+                        format( verilog_table[i] ), pht.getCounter( i )));
+          }
+        }
+      }
+      ps.println( n_diff + " counters differ from the Verilog table" );
+    }
+    else {
+      ps.println( "rerun the testbench with +dumpat=" + diverged_at
+                  + " to compare the whole table" );
+    }
+  }
+
+
+  public static void usage() {
+    System.err.println( "Usage: java gshare.VerilogEquivalence "
+                        + "[-bits gshare_tam] tracefile golden.log" );
+    System.exit( 1 );
+  }
+
+
+  public static void main( String argv[] ) throws Exception {
+    int    bits = 10;
+    String filenames[] = new String[2];
+    int    n_files = 0;
+
+    for( int i=0; i < argv.length; i++ ) {
+      if (argv[i].equals( "-bits" ) && i+1 < argv.length) {
+        bits = Integer.parseInt( argv[++i] );
+      }
+      else if (argv[i].startsWith( "-" ) || n_files == 2) usage();
+      else filenames[n_files++] = argv[i];
+    }
+    if (n_files != 2) usage();
+
+    VerilogEquivalence checker = new VerilogEquivalence( bits );
+    BranchSource       trace   = TraceEngine.openTrace( filenames[0] );
+    BufferedReader     golden  = new BufferedReader(
+                                   new FileReader( filenames[1] ), 1 << 16 );
+    boolean ok;
+    try {
+      ok = checker.check( trace, golden );
+    }
+    finally {
+      trace.close();
+      golden.close();
+    }
+
+    if (!ok) {
+      checker.printDivergence( System.out );
+      System.exit( 1 );
+    }
+    System.out.println( "-I- " + checker.getBranchCount()
+                        + " branches agree" + String.format( " (%.2f s, %.0f branches/s)",
+                          checker.elapsed_nanos * 1.0E-9,
+                          checker.getBranchCount() * 1.0E9
+                            / Math.max( 1, checker.elapsed_nanos )));
+  }
+
+}
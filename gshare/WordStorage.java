@@ -0,0 +1,45 @@
+/* WordStorage.java - gshare.WordStorage
+ *
+ * 17.10.26 - first version
+ */
+
+package gshare;
+
+
+/**
+ * WordStorage - an alternative backend for the words of a GenericMemory,
+ * used instead of the plain <code>long data[]</code> array when selected
+ * via GenericMemory.setStorageMode().
+ * <p>
+ * Words are up to 63 bits wide; the value GenericMemory.UNDEFINED (-1)
+ * must be preserved by every implementation.
+ */
+public interface WordStorage {
+
+  public int size();
+
+  public long get( int address );
+
+  public void set( int address, long value );
+
+  /**
+   * set all words to value.
+   */
+  public void fill( long value );
+
+  /**
+   * copy length words starting at address into dst[offset...].
+   */
+  public void getWords( int address, long dst[], int offset, int length );
+
+  /**
+   * copy length words from src[offset...] into the storage at address.
+   */
+  public void setWords( int address, long src[], int offset, int length );
+
+  /**
+   * release resources (files, mappings) held by this storage.
+   */
+  public void close();
+
+}
@@ -8,64 +8,103 @@ package gshare;
 import  hades.models.*;
 import  hades.signals.*;
 import  hades.simulator.*;
-import  hades.symbols.*;
+
+import  jfig.utils.SetupManager;
 /**
  *
  * @author Usuário
  */
-public class gshare extends  GenericMemory {
-  protected  PortStdLogicVector  port_PCF, port_PCD, port_DESTCD;
-  protected  PortStdLogicVector  port_VP, port_DEST, port_DZ,port_nWE;
-  protected  PortStdLogic1164    port_CLK,port_reset,port_previ;
-  public final static double  t_access       = 30.0E-9; 
-  public final static double  t_tristate     =  5.0E-9; 
-  public final static double  t_undefined    =  6.0E-9; 
-  public final static double  t_setup        =  6.0E-9; 
-  public final static double  t_min_we_cycle =  6.0E-9; 
+public class gshare extends  PredictorComponent {
+
+  /* table geometry, see setGeometry(). A line is
+   * (vp << (tag_bits+target_bits)) | (tag << target_bits) | dest,
+   * the PCF/PCD address is (index << tag_bits) | tag.
+   */
+  protected  int           index_bits, tag_bits, target_bits, counter_bits;
+  protected  long          index_mask, tag_mask, target_mask, vp_mask;
+  protected  int           vp_shift;
+
+  /* set-associative mode: 2^index_bits sets of ways lines each, line
+   * address set*ways+way. ways == 1 is the original direct-mapped table.
+   */
+  protected  int                ways, way_bits;
+  protected  int                replacement_policy;
+  protected  ReplacementPolicy  replacement;
+
+  /* the largest table, ways << index_bits lines */
+  public final static long      MAX_LINES = 1L << 26;
+
+  /* gshare mode: with history_bits > 0 the prediction (VP) is read from
+   * a table of 2-bit counters indexed by PCF xor the global history, as
+   * in verilog/preditor_gshare.v. The table words then only supply the
+   * target (PRED). With history_bits == 0, VP comes from the table words.
+   */
+  protected  int           history_bits;
+  protected  long          history_mask;
+  protected  long          history;
+  protected  CounterTable  pht;
+
+  /* speculative history for headless runs, see setCheckpoints():
+   * predict() shifts the predicted direction into history and saves the
+   * previous history in a ring of checkpoints, update() consumes the
+   * oldest one and repairs history on a misprediction. The direction
+   * shifted in is that of the counter (checkpoint_taken), unless an
+   * enclosing predictor replaced it, see setSpeculativeOutcome().
+   */
+  protected  long          checkpoints[];
+  protected  boolean       checkpoint_taken[], checkpoint_outcome[];
+  protected  int           checkpoint_mask;
+  protected  long          checkpoint_head, checkpoint_tail;
+  protected  long          resolved_history;
+  protected  long          n_repairs;
+
+  /* tracing, see setTraceLevel() */
+  protected  int           trace_level;
+  protected  TraceSink     trace_sink;
+
+  /* always-on counters, see getMetrics() */
+  protected  PredictorMetrics  metrics;
 
   public gshare() {
     super();
-    constructPorts();
+    int w = SetupManager.getInteger( "Hades.gshare.Ways", 1 );
+    ways  = checkWays( w, SetupManager.getInteger( "Hades.gshare.IndexBits", 8 ))
+            ? w : 1;
+    replacement_policy = Math.max( 0, ReplacementPolicy.parse(
+      SetupManager.getProperty( "Hades.gshare.Replacement", "lru" )));
+    setGeometry( SetupManager.getInteger( "Hades.gshare.IndexBits",   8 ),
+                 SetupManager.getInteger( "Hades.gshare.TagBits",     4 ),
+                 SetupManager.getInteger( "Hades.gshare.TargetBits", 12 ),
+                 SetupManager.getInteger( "Hades.gshare.CounterBits", 2 ));
+    setHistoryBits( SetupManager.getInteger( "Hades.gshare.HistoryBits", 0 ));
+    trace_level = SetupManager.getInteger( "Hades.gshare.TraceLevel", TraceSink.OFF );
   }
     
 
- protected void constructPorts() {
-    int  na   = getAddressBusWidth();
-    port_PCF   = new PortStdLogicVector( this, "PCF", Port.IN,  null, 12 );
-    port_PCD   = new PortStdLogicVector( this, "PCD", Port.IN,  null, 12 );
-    port_DESTCD   = new PortStdLogicVector( this, "DESTCD", Port.IN,  null, 12 );
-
-    port_VP   = new PortStdLogicVector( this, "VP", Port.OUT, null, 2 );
-    port_DEST   = new PortStdLogicVector( this, "PRED", Port.OUT, null, 32 );
-    port_DZ   = new PortStdLogicVector( this, "DZ", Port.IN,  null, n_bits );
-
-    port_nWE  = new PortStdLogicVector(this, "nWE", Port.IN, null,2 );
-    port_CLK  = new PortStdLogic1164(   this, "CLK", Port.IN, null );
-    port_reset = new PortStdLogic1164(this,"R", Port.IN, null);
-    port_previ = new PortStdLogic1164(this,"P", Port.IN, null);
-    ports = new Port[10];
-    ports[0] = port_PCF;
-    ports[1] = port_PCD;
-    ports[2] = port_DESTCD;
-    ports[3] = port_VP;
-    ports[4] = port_DEST;
-    ports[5] = port_DZ;
-    ports[6] = port_nWE;
-    ports[7] = port_CLK;
-    ports[8]=port_reset;
-    ports[9]=port_previ;
-  }
- 
-  public boolean canChangeSize() {
-    return !isConnected();
+  protected int getPCWidth() {
+    return index_bits + tag_bits;
+  }
+
+  protected int getTargetWidth() {
+    return target_bits;
+  }
+
+  protected int getVPWidth() {
+    return counter_bits;
   }
 
 
+  /**
+   * n_words is rounded up to a power of two, the index width.
+   */
   public void setSize( int n_words ) {
     resize( n_words, getBitsPerWord() );
   }
 
 
+  /**
+   * changes the target width, keeping tag and counter widths.
+   */
   public void setBitsPerWord( int n_bits ) {
     resize( getSize(), n_bits );
   }
@@ -75,214 +114,717 @@ public class gshare extends  GenericMemory {
     this.n_words = n_words;
     this.n_bits  = n_bits;
 
-    this.data = new long[n_words];
+    createMemory();
     initializeWithZeroes();
 
     constructStandardValues();
     constructPorts();
     return true;
   }
-public void elaborate( Object arg ) {
-    if (debug) message( toString() + ".elaborate()" ); 
-    simulator = parent.getSimulator();
 
-    if (simulator == null) return;
-    if (port_VP.getSignal() != null) {
-      simulator.scheduleEvent( 
-        new SimEvent(port_VP.getSignal(), 0.0, vector_UUU.copy(), port_VP));
+
+  /**
+   * set the table geometry: 2^index_bits lines, each with a tag of
+   * tag_bits, a target of target_bits and a prediction (VP) of
+   * counter_bits. The PCF/PCD ports are index_bits+tag_bits wide,
+   * DESTCD is target_bits wide, VP is counter_bits wide.
+   * The original table is setGeometry( 8, 4, 12, 2 ).
+   * Returns false, leaving the table unchanged, for an illegal
+   * geometry, or if ways << index_bits exceeds MAX_LINES.
+   */
+  public boolean setGeometry( int index_bits, int tag_bits,
+                              int target_bits, int counter_bits )
+  {
+    if (index_bits < 0 || index_bits > 26 || tag_bits < 0
+        || target_bits < 1 || counter_bits < 1
+        || tag_bits + target_bits + counter_bits > 62
+        || ((long) ways << index_bits) > MAX_LINES)
+    {
+      message( "-E- " + toString() + ": illegal geometry " + index_bits
+               + "/" + tag_bits + "/" + target_bits + "/" + counter_bits
+               + " with " + ways + " ways" );
+      return false;
+    }
+    this.tag_bits     = tag_bits;
+    this.counter_bits = counter_bits;
+    resize( ways << index_bits, counter_bits + tag_bits + target_bits );
+    if (pht != null) setHistoryBits( history_bits );
+    return true;
+  }
+
+
+  /**
+   * select an n-way set-associative table, keeping the number of sets.
+   * ways must be a power of two, at most 64; 1 is direct-mapped.
+   * Returns false, leaving the table unchanged, for illegal ways or
+   * if ways << index_bits exceeds MAX_LINES.
+   */
+  public boolean setWays( int ways ) {
+    if (!checkWays( ways, index_bits )) return false;
+    this.ways = ways;
+    resize( ways << index_bits, getBitsPerWord() );
+    return true;
+  }
+
+
+  /**
+   * true if ways is a power of two <= 64, index_bits is 0..26 and
+   * ways << index_bits does not exceed MAX_LINES; else print an error.
+   */
+  protected boolean checkWays( int ways, int index_bits ) {
+    if (ways < 1 || ways > 64 || (ways & (ways-1)) != 0) {
+      message( "-E- " + toString() + ": ways must be a power of two <= 64, not "
+               + ways );
+      return false;
+    }
+    if (index_bits < 0 || index_bits > 26) {
+      message( "-E- " + toString() + ": illegal index bits " + index_bits );
+      return false;
+    }
+    if (((long) ways << index_bits) > MAX_LINES) {
+      message( "-E- " + toString() + ": " + ways + " ways of 2^"
+               + index_bits + " sets exceed " + MAX_LINES + " lines" );
+      return false;
+    }
+    return true;
+  }
+
+  public int getWays() {
+    return ways;
+  }
+
+
+  /**
+   * set the replacement policy of the ways: ReplacementPolicy.LRU,
+   * PLRU or RANDOM. Clears the replacement state.
+   */
+  public void setReplacementPolicy( int policy ) {
+    replacement_policy = policy;
+    replacement = new ReplacementPolicy( policy, 1 << index_bits, ways );
+  }
+
+  public ReplacementPolicy getReplacementPolicy() {
+    return replacement;
+  }
+
+  public int getIndexBits()   { return index_bits; }
+  public int getTagBits()     { return tag_bits; }
+  public int getTargetBits()  { return target_bits; }
+  public int getCounterBits() { return counter_bits; }
+
+
+  /**
+   * the storage of the predictor in bits: table lines plus counters.
+   */
+  public long getStorageBits() {
+    long bits = (long) n_words * n_bits;
+    if (pht != null) bits += (long) pht.getSize() * pht.getBitsPerWord();
+    return bits + replacement.getStateBits();
+  }
+
+
+  /**
+   * the number of non-empty table lines.
+   */
+  public int getValidLines() {
+    int n = 0;
+    for( int i=0; i < n_words; i++ ) {
+      if (getDataAt( i ) != 0) n++;
+    }
+    return n;
+  }
+
+
+  /**
+   * derive the geometry from n_words and n_bits, which may come from
+   * setSize(), setBitsPerWord() or the design file, then allocate the table.
+   */
+  public void createMemory() {
+    if (ways < 1) ways = 1;
+    for( way_bits=0; (1 << way_bits) < ways; way_bits++ ) ;
+
+    int ib = 0;
+    while ((ways << ib) < n_words && ib < 26) ib++;
+    n_words     = ways << ib;
+    index_bits  = ib;
+    target_bits = Math.max( 1, n_bits - counter_bits - tag_bits );
+    n_bits      = counter_bits + tag_bits + target_bits;
+
+    index_mask  = (1L << index_bits) - 1;
+    tag_mask    = (1L << tag_bits) - 1;
+    target_mask = (1L << target_bits) - 1;
+    vp_mask     = (1L << counter_bits) - 1;
+    vp_shift    = tag_bits + target_bits;
+
+    super.createMemory();
+
+    if (metrics == null) metrics = new PredictorMetrics( n_words );
+    metrics.resize( n_words, ways );
+    replacement = new ReplacementPolicy( replacement_policy, 1 << index_bits, ways );
+  }
+
+
+  /**
+   * geometry options of the design file: index=, tag=, target=, counter=
+   * and history= bits, ways= and replacement=lru|plru|random.
+   * Illegal index= and ways= values are reported and ignored.
+   */
+  protected boolean setOption( String key, String value ) {
+    int bits;
+    if      (key.equals( "index" )) {
+      bits = Integer.parseInt( value );
+      if (checkWays( Math.max( 1, ways ), bits )) {
+        index_bits = bits;
+        n_words    = Math.max( 1, ways ) << index_bits;
+      }
+    }
+    else if (key.equals( "ways" )) {
+      bits = Integer.parseInt( value );
+      if (checkWays( bits, index_bits )) {
+        ways    = bits;
+        n_words = ways << index_bits;
+      }
+    }
+    else if (key.equals( "replacement" )) {
+      replacement_policy = Math.max( 0, ReplacementPolicy.parse( value ));
+    }
+    else if (key.equals( "tag" )) {
+      bits     = Integer.parseInt( value );
+      n_bits  += bits - tag_bits;
+      tag_bits = bits;
+    }
+    else if (key.equals( "target" ))  n_bits = counter_bits + tag_bits + Integer.parseInt( value );
+    else if (key.equals( "counter" )) {
+      bits         = Integer.parseInt( value );
+      n_bits      += bits - counter_bits;
+      counter_bits = bits;
+    }
+    else if (key.equals( "history" )) history_bits = Integer.parseInt( value );
+    else return super.setOption( key, value );
+    return true;
+  }
+
+  protected String getOptions() {
+    String s = super.getOptions();
+    if (ways > 1) s = s + " ways=" + ways + " replacement=" + replacement.getName();
+    s = s    + " index=" + index_bits + " tag=" + tag_bits
+             + " target=" + target_bits + " counter=" + counter_bits;
+    if (history_bits > 0) s = s + " history=" + history_bits;
+    return s;
+  }
+
+  public boolean initialize( String s ) {
+    boolean ok = super.initialize( s );
+    setHistoryBits( history_bits );
+    return ok;
+  }
+  public void elaborate( Object arg ) {
+    metrics.register( getFullName() );
+    metrics.setDumpInterval( getFullName(),
+      SetupManager.getInteger( "Hades.gshare.MetricsDumpInterval", 0 ),
+      System.out );
+    super.elaborate( arg );
+  }
+
+
+  protected void resetPredictor() {
+    if (pht != null) resetHistory();
+  }
+
+
+  /**
+   * the nWE strobe of evaluate(). In gshare mode, 3 and 2 train the
+   * counters, and 3 also writes the target; otherwise 3 installs the
+   * line and 2 clears its prediction bits.
+   */
+  protected void strobe( int nWE, long pcd_value, long destdc_value ) {
+    if (nWE == 3 || nWE == 2) {
+      countResolve( pcd_value, destdc_value, nWE == 3 );
     }
-    if (port_DEST.getSignal() != null) {
-      simulator.scheduleEvent( 
-        new SimEvent(port_DEST.getSignal(), 0.0, vector_UUU.copy(), port_DEST));
+    if (nWE == 3){
+      writeLine( 3, pcd_value, destdc_value );
+      if (pht != null) resolve( pcd_value, true );
+    }else if (nWE == 2){
+      if (pht != null) resolve( pcd_value, false );
+      else             writeLine( 2, pcd_value, destdc_value );
+    }else if (nWE == 1){
+      writeLine( 1, pcd_value, destdc_value );
+    }
+  }
+
+
+  protected void fetch( long pcf_value ) {
+    int   linha = lookupLine( pcf_value );
+    boolean hit = linha >= 0;
+    if (!hit) linha = getSet( pcf_value ) << way_bits;
+    long  data_x = getDataAt( linha );
+    if (trace_level >= TraceSink.LOOKUPS) {
+      traceRecord( TraceSink.LOOKUP, pcf_value, linha, data_x, pcf_value & tag_mask );
+    }
+
+    long hit_x = hit ? data_x : 0;
+    if (pht != null) {
+      out_VP = vector_VP[(int) (pht.getCounter( getHistoryIndex( pcf_value )) & vp_mask)];
+    }
+    else {
+      out_VP = vector_VP[(int) ((hit_x >> vp_shift) & vp_mask)];
     }
+    out_PRED = getPredVector( hit_x & target_mask );
 
+    notifyReadListeners( linha, data_x );
   }
- public void evaluate( Object arg ) {
-    if (debug) System.err.println( toString() + ".evaluate()" );
 
-    double          time        = simulator.getSimTime() + t_access;
 
-    StdLogicVector  pcf   = port_PCF.getVectorOrUUU();
-    StdLogicVector  pcd   = port_PCD.getVectorOrUUU();
-    StdLogicVector  destdc   = port_DESTCD.getVectorOrUUU();
-    StdLogicVector  vp   = null;
-    StdLogicVector  destino   = null;
-    StdLogic1164 reset = port_reset.getValueOrU();
+  protected void timeStep( double time ) {
+    listenerTimeStep( time );
+    if (pht != null) pht.listenerTimeStep( time );
+  }
+
+
+  /**
+   * the set for word address pc, PCF[index_bits+tag_bits-1:tag_bits].
+   */
+  protected final int getSet( long pc ) {
+    return (int) ((pc >> tag_bits) & index_mask);
+  }
 
-    StdLogicVector    value_nWE   = port_nWE.getVectorOrUUU();
-    StdLogic1164    value_CLK   = port_CLK.getValueOrU();
-    StdLogic1164    value_previ=port_previ.getValueOrU();
 
-    if (!value_CLK.is_01()) {
-      message( "-W- " + toString() +
-               "CLK undefined: data loss would occur! Ignoring..." );
+  /**
+   * compares the tag of pc against all ways of its set: returns the
+   * address of the matching non-empty line, or -1.
+   */
+  protected final int findLine( long pc ) {
+    int base = getSet( pc ) << way_bits;
+    for( int w=0; w < ways; w++ ) {
+      if (matchLine( pc, getDataAt( base + w )) != 0) return base + w;
     }
-    else if (pcd.has_UXZ()) { 
-      message( "-W- " + toString() +
-               "AZ address undefined: data loss would occur! Ignoring..." );
+    return -1;
+  }
+
+
+  /**
+   * the fetch lookup: findLine(), counting the lookup and marking a
+   * hit way as most recently used.
+   */
+  protected final int lookupLine( long pc ) {
+    int addr = findLine( pc );
+    if (addr >= 0) {
+      metrics.lookup( addr & (ways-1) );
+      replacement.touch( addr >> way_bits, addr & (ways-1) );
     }
     else {
-        if (reset.getValue().equals(2)){
-
-            vp   = new StdLogicVector( 2, 0 );
-            destino   = new StdLogicVector( 32, 0 );
-            
-            schedule( port_VP, vp, time + t_access );
-            schedule( port_DEST, destino, time + t_access );
-        }
-        else if(reset.getValue().equals(3)){
-
-            SignalStdLogic1164  clk = (SignalStdLogic1164) port_CLK.getSignal();
-            SignalStdLogic1164  previ = (SignalStdLogic1164) port_previ.getSignal();
-            if (value_nWE.equals(new StdLogicVector(2,3)) && clk != null && clk.hasRisingEdge()&&previ!=null&&previ.hasRisingEdge()) {
-
-  
-                int  addr_z = (int) pcd.subset(11, 4).getValue();
-                long old_z  =       getDataAt( addr_z);
-
-
-                long new_tag = pcd.subset(3, 0).getValue();
-                long new_dest = destdc.getValue();
-               
-                long data_z = ((((1 << 1 | 1) << 4)| new_tag) << 12) | new_dest ;
-
-                message( "-W- " + pcf );
-                setDataAt( addr_z, data_z );
-                notifyWriteListeners( addr_z, old_z, data_z );
-                
-            }else if (value_nWE.equals(new StdLogicVector(2,2))&& clk != null && clk.hasRisingEdge()&&previ!=null&&previ.hasRisingEdge()){
-                
-  
-                int  addr_z = (int) pcd.subset(11, 4).getValue();
-                long old_z  =       getDataAt( addr_z);         
-                long data_z = (1 << 1 | 0) | (old_z & 0xffff);
-
-                setDataAt( addr_z, data_z );
-                notifyWriteListeners( addr_z, old_z, data_z );
-            }else if (value_nWE.equals(new StdLogicVector(2,1))&& clk != null && clk.hasRisingEdge()&&previ!=null&&previ.hasRisingEdge()){
-                int  addr_z = (int) pcd.subset(11, 4).getValue();
-                long old_z  =       getDataAt( addr_z);
-
-                long data_z = 0 << 18;
-                setDataAt( addr_z, data_z );
-                notifyWriteListeners( addr_z, old_z, data_z );
-            }
-            
-            if (pcf.has_UXZ()) {
-                vp   = vector_UUU.copy();
-                destino   = vector_UUU.copy();
-            }
-            else {
-                System.out.println(pcf);
-                int   linha = (int) pcf.subset(11, 4).getValue();
-                System.out.println("Linha " + linha) ;
-                long  data_x = getDataAt( linha );
-                System.out.println("Data " + data_x) ;
-                long cmp_tag = pcf.subset(3, 0).getValue();
-                System.out.println("CPM_TAG " + cmp_tag) ;
-                long tag = (data_x >> 12) & 15 ;
-                System.out.println("TAG " + tag) ;
-                
-                    if (cmp_tag == tag){
-                        long v_p = data_x >> 16;
-                        long dest = data_x & 0xfff;
-                        vp = new StdLogicVector( 2, v_p );
-                        destino = new StdLogicVector(32,(dest << 2));
-                    }else{
-                        vp   = new StdLogicVector( 2, 0 );
-                        destino = new StdLogicVector(32,0);
-                    }
-
-                schedule( port_VP, vp, time + t_access );
-                schedule( port_DEST, destino, time + t_access );
-
-                notifyReadListeners( linha, data_x );
-            }
-        }
-    }
-
-   
-    
+      metrics.lookup( -1 );
+    }
+    return addr;
+  }
+
+
+  /**
+   * the way of set to install into: an empty way if there is one,
+   * otherwise the victim of the replacement policy.
+   */
+  protected int getVictimWay( int set ) {
+    int base = set << way_bits;
+    for( int w=0; w < ways; w++ ) {
+      if (getDataAt( base + w ) == 0) return w;
+    }
+    return replacement.victim( set );
   }
-  public void schedule( Port port, Object value, double time ) {
-    Signal signal = port.getSignal();
-    if (signal != null) {
-      simulator.scheduleEvent(  
-        new SimEvent( signal, time, value, port ));
-    }
-  }
-  
-  @Override
-    public boolean needsDynamicSymbol() {
-        return true;
-    }
-
-    @Override
-    public void constructDynamicSymbol() {
-        symbol = new Symbol();
-        symbol.setParent(this);
-
-        //retângulo cinza
-        BboxRectangle bbr = new BboxRectangle();
-        bbr.initialize("0 0 4200 4200");
-
-        //retangulo do componente
-        Rectangle rec = new Rectangle();
-        rec.initialize("0 0 4200 4200");
-
-        //símbolo para portas de fios
-        BusPortSymbol portsymbol0 = new BusPortSymbol();
-        portsymbol0.initialize("0 1200 PCF");
-        
-        BusPortSymbol portsymbol3 = new BusPortSymbol();
-        portsymbol3.initialize("3600 0 PRED");
-        
-        
-        BusPortSymbol portsymbol4 = new BusPortSymbol();
-        portsymbol4.initialize("2400 0 DESTCD");
-
-        BusPortSymbol portsymbol5 = new BusPortSymbol();
-        portsymbol5.initialize("0 3000 PCD");
-
-        BusPortSymbol portsymbol2 = new BusPortSymbol();
-        portsymbol2.initialize("4200 3600 VP");
-        
-        //sínbolo para portas de barramentos
-        
-        BusPortSymbol portsymbol6 = new BusPortSymbol();
-        portsymbol6.initialize("1800 4200 nWE");
-        
-        PortSymbol portsymbol1 = new PortSymbol();
-        portsymbol1.initialize("600 4200 CLK");
-        
-        PortSymbol portsymbol7 = new PortSymbol();
-        portsymbol7.initialize("1200 4200 R");
-        PortSymbol portsymbol9 = new PortSymbol();
-        portsymbol9.initialize("1200 4200 H");// previ estado de desvio
-        
-
-        FatLabel label_comp_name = new FatLabel();
-        FatLabel label_comp_name_1 = new FatLabel();
-        label_comp_name_1.initialize("2100 2000 2 " + "Prediction");
-        label_comp_name.initialize("2100 2800 2 " + "Table");
-        
-        
-        //adiciona os símbolos para o "desenhista" do programa
-        symbol.addMember(bbr);
-        symbol.addMember(rec);
-        symbol.addMember(label_comp_name_1);
-        symbol.addMember(label_comp_name);
-        symbol.addMember(portsymbol0);
-        symbol.addMember(portsymbol1);
-        symbol.addMember(portsymbol2);
-        symbol.addMember(portsymbol3);
-        symbol.addMember(portsymbol4);
-        symbol.addMember(portsymbol5);
-        symbol.addMember(portsymbol6);
-        symbol.addMember(portsymbol7);
-        symbol.addMember(portsymbol9);
-        
-        
+
+
+  /**
+   * writes the table line of pcd, exactly as the nWE strobe in
+   * evaluate() does: nWE=3 installs a valid entry with the tag of pcd
+   * and target destcd, nWE=2 clears the prediction bits (VP = 0, not
+   * taken) and keeps tag and target, nWE=1 clears the whole line.
+   * Other values are ignored. (The original nWE=2 also ORed an
+   * unshifted 2 into the target bits; that corruption is dropped.)
+   * <p>
+   * nWE=3 writes the way whose tag matches, or else a victim way.
+   * nWE=2 and nWE=1 only write a matching way; a direct-mapped table
+   * writes its single line regardless of the tag, as the original did.
+   * The line is written with compareAndSetDataAt(), and recomputed if
+   * another thread changed it in between.
+   */
+  public void writeLine( int nWE, long pcd, long destcd ) {
+    if (nWE < 1 || nWE > 3) return;
+
+    int  set    = getSet( pcd );
+    int  addr_z = findLine( pcd );
+    if (addr_z < 0) {
+      if      (nWE == 3)  addr_z = (set << way_bits) | getVictimWay( set );
+      else if (ways == 1) addr_z = set;
+      else                return;
     }
-    
-} 
+    long old_z, data_z;
+    do {
+      old_z = getDataAt( addr_z );
+      if      (nWE == 3) data_z = (((vp_mask << tag_bits) | (pcd & tag_mask)) << target_bits)
+                                | (destcd & target_mask);
+      else if (nWE == 2) data_z = old_z & ~(vp_mask << vp_shift);
+      else               data_z = 0;
+    } while( !compareAndSetDataAt( addr_z, old_z, data_z ));
+
+    notifyWriteListeners( addr_z, old_z, data_z );
+    if (nWE == 3) replacement.touch( set, addr_z & (ways-1) );
+    metrics.write( addr_z, nWE == 3 && old_z > 0
+                           && ((old_z >> target_bits) & tag_mask) != (pcd & tag_mask) );
+
+    if (trace_level >= TraceSink.WRITES) {
+      traceRecord( TraceSink.WRITE, pcd, addr_z, data_z, nWE );
+    }
+  }
+
+
+  /**
+   * returns data_x if the tag stored in it matches the tag bits of pcf,
+   * and 0 (no prediction, target 0) otherwise.
+   */
+  protected long matchLine( long pcf, long data_x ) {
+    long cmp_tag = pcf & tag_mask;
+    long tag     = (data_x >> target_bits) & tag_mask;
+    return (cmp_tag == tag) ? data_x : 0;
+  }
+
+
+  /**
+   * the fetch lookup of evaluate() without the port and listener traffic:
+   * returns the matching table word for pcf, or 0 on a tag miss.
+   */
+  public long peekLine( long pcf ) {
+    int addr = findLine( pcf );
+    return (addr >= 0) ? getDataAt( addr ) : 0;
+  }
+
+
+  /**
+   * count a misprediction if the branch at pcd, resolved with
+   * taken and target destcd, was mispredicted in direction or target.
+   * Called before the tables are updated.
+   */
+  protected void countResolve( long pcd, long destcd, boolean taken ) {
+    long    data_x = peekLine( pcd );
+    boolean predicted_taken = (pht != null)
+                            ? pht.isTaken( getHistoryIndex( pcd ))
+                            : isPredictedTaken( data_x );
+    metrics.resolve( predicted_taken != taken
+                     || (taken && (data_x & target_mask) != destcd) );
+  }
+
+
+  /**
+   * the prediction of table word data_x: the upper VP bit.
+   */
+  protected final boolean isPredictedTaken( long data_x ) {
+    return ((data_x >> (vp_shift + counter_bits - 1)) & 1) != 0;
+  }
+
+
+  /**
+   * the lookup, misprediction and per-line write counters of this table.
+   * Registered as a JMX MBean on elaborate(); with the
+   * Hades.gshare.MetricsDumpInterval property set to n > 0, the counters
+   * are also printed every n milliseconds.
+   */
+  public PredictorMetrics getMetrics() {
+    return metrics;
+  }
+
+
+  /**
+   * select gshare mode with a global history register of history_bits
+   * and a table of 2^history_bits counters (gshare_tam in
+   * preditor_gshare.v), or the plain tagged table for history_bits == 0.
+   * <p>
+   * In gshare mode, the nWE strobe must be given for every resolved
+   * branch: nWE=3 for taken (which also writes the target), nWE=2 for
+   * not taken. R='0' at a rising CLK edge resets history and counters.
+   */
+  public void setHistoryBits( int history_bits ) {
+    if (history_bits > 26) {
+      message( "-W- " + toString() + ": history width limited to 26 bits" );
+      history_bits = 26;
+    }
+    this.history_bits = history_bits;
+    if (pht != null) pht.dispose();
+    if (history_bits > 0) {
+      history_mask = (1L << history_bits) - 1;
+      pht          = new CounterTable( history_bits, Math.max( 1, counter_bits ));
+    }
+    else {
+      history_mask = 0;
+      pht          = null;
+    }
+    history = 0;
+    resolved_history = 0;
+    checkpoint_head  = checkpoint_tail = 0;
+  }
+
+  /**
+   * also unregister the metrics MBean and stop the periodic dump, when
+   * the table is removed from the design or replaced.
+   */
+  public void dispose() {
+    super.dispose();
+    if (pht != null) pht.dispose();
+    metrics.unregister();
+    metrics.setDumpInterval( getFullName(), 0, System.out );
+  }
+
+  public int getHistoryBits() {
+    return history_bits;
+  }
+
+  public long getHistory() {
+    return history;
+  }
+
+  public CounterTable getPatternHistoryTable() {
+    return pht;
+  }
+
+
+  /**
+   * the counter index for a branch at word address pc:
+   * hist_nao_desvia_gshare ^ brn_pc_i[gshare_tam+1:2] in the Verilog model.
+   */
+  protected int getHistoryIndex( long pc ) {
+    return (int) ((pc ^ history) & history_mask);
+  }
+
+
+  /**
+   * train the counter of the branch at word address pcd with its outcome,
+   * then shift the outcome into the global history.
+   */
+  protected void resolve( long pcd, boolean taken ) {
+    pht.train( getHistoryIndex( pcd ), taken );
+    history = ((history << 1) | (taken ? 1 : 0)) & history_mask;
+  }
+
+
+  /**
+   * clear the global history and set all counters to weakly taken.
+   */
+  public void resetHistory() {
+    history = 0;
+    resolved_history = 0;
+    checkpoint_head  = checkpoint_tail = 0;
+    if (pht != null) pht.initializeWithDefaultValues();
+  }
+
+
+  /**
+   * in gshare mode, update the history speculatively at predict() with
+   * up to n branches in flight, or only at update() for n = 0 (as the
+   * Verilog model and the Hades ports do). n is rounded up to a power
+   * of two. predict() with n branches already in flight throws an
+   * IllegalStateException: a front end would stall.
+   */
+  public void setCheckpoints( int n ) {
+    if (n <= 0) {
+      checkpoints        = null;
+      checkpoint_taken   = null;
+      checkpoint_outcome = null;
+      checkpoint_mask    = 0;
+    }
+    else {
+      int size = 1;
+      while (size < n) size <<= 1;
+      checkpoints        = new long[size];
+      checkpoint_taken   = new boolean[size];
+      checkpoint_outcome = new boolean[size];
+      checkpoint_mask    = size - 1;
+    }
+    checkpoint_head  = checkpoint_tail = 0;
+    resolved_history = history;
+  }
+
+  public int getCheckpoints() {
+    return (checkpoints == null) ? 0 : checkpoints.length;
+  }
+
+  /**
+   * the number of history repairs after mispredictions.
+   */
+  public long getRepairCount() {
+    return n_repairs;
+  }
+
+
+  /**
+   * replace the direction shifted into the speculative history by the
+   * last predict(), for a predictor that only uses this gshare as one
+   * of its components (see TournamentPredictor): the history follows
+   * the final prediction, and update() repairs it when that was wrong.
+   */
+  public void setSpeculativeOutcome( boolean outcome ) {
+    if (checkpoints == null || checkpoint_tail == checkpoint_head) return;
+    int slot = (int) ((checkpoint_tail - 1) & checkpoint_mask);
+    checkpoint_outcome[slot] = outcome;
+    history = ((checkpoints[slot] << 1) | (outcome ? 1 : 0)) & history_mask;
+  }
+
+
+  /**
+   * the counter index of the oldest unresolved branch at word address
+   * pc, with the history it was predicted with; the current history
+   * without branches in flight.
+   */
+  protected int getResolveIndex( long pc ) {
+    if (checkpoints == null || checkpoint_head == checkpoint_tail) {
+      return getHistoryIndex( pc );
+    }
+    long h = checkpoints[(int) (checkpoint_head & checkpoint_mask)];
+    return (int) ((pc ^ h) & history_mask);
+  }
+
+
+  /**
+   * drop the checkpoints of all unresolved branches, and restore the
+   * history as of the last update().
+   */
+  public void squash() {
+    if (checkpoints == null) return;
+    history         = resolved_history;
+    checkpoint_tail = checkpoint_head;
+  }
+
+
+  /**
+   * select what is traced: TraceSink.OFF, WRITES (table writes) or
+   * LOOKUPS (writes and fetch lookups). With OFF, tracing costs one
+   * int compare per evaluate(). The default comes from the
+   * Hades.gshare.TraceLevel property.
+   */
+  public void setTraceLevel( int level ) {
+    trace_level = level;
+  }
+
+  public int getTraceLevel() {
+    return trace_level;
+  }
+
+  /**
+   * set the sink for trace records. If none is set, the first record
+   * opens the file named by the Hades.gshare.TraceFile property
+   * (default gshare-trace.csv, binary if the name ends with .bin).
+   */
+  public void setTraceSink( TraceSink sink ) {
+    trace_sink = sink;
+  }
+
+  public TraceSink getTraceSink() {
+    return trace_sink;
+  }
+
+  protected void traceRecord( int kind, long pc, long line, long data, long extra ) {
+    if (trace_sink == null) {
+      String filename = SetupManager.getProperty( "Hades.gshare.TraceFile",
+                                                  "gshare-trace.csv" );
+      try {
+        trace_sink = TraceSink.open( filename );
+      }
+      catch( Exception e ) {
+        message( "-E- " + toString() + ": cannot open trace file "
+                 + filename + ": " + e );
+        trace_level = TraceSink.OFF;
+        return;
+      }
+    }
+    double time = (simulator != null) ? simulator.getSimTime() : 0.0;
+    trace_sink.record( kind, time, pc, line, data, extra );
+  }
+
+
+  /* BranchPredictor, for headless runs, see TraceEngine.
+   * Byte addresses are mapped onto the word addresses of the
+   * PCF/PCD/DESTCD ports. The table only holds the low target_bits+2 bits
+   * of the target (PRED), the upper bits are taken from the branch address.
+   */
+
+  protected long predictedTarget;
+
+  public boolean predict( long pc ) {
+    long pcf    = (pc >>> 2) & getPCMask();
+    int  addr   = lookupLine( pcf );
+    long data_x = (addr >= 0) ? getDataAt( addr ) : 0;
+    if (trace_level >= TraceSink.LOOKUPS) {
+      traceRecord( TraceSink.LOOKUP, pcf, (addr >= 0) ? addr : getSet( pcf ) << way_bits,
+                   data_x, pcf & tag_mask );
+    }
+    predictedTarget = (pc & ~((target_mask << 2) | 3)) | ((data_x & target_mask) << 2);
+
+    if (pht == null) return isPredictedTaken( data_x );
+
+    boolean p = pht.isTaken( getHistoryIndex( pcf ));
+    if (checkpoints != null) {
+      if (checkpoint_tail - checkpoint_head > checkpoint_mask) {
+        throw new IllegalStateException( toString()
+          + ": more than " + checkpoints.length + " branches in flight" );
+      }
+      int slot = (int) (checkpoint_tail++ & checkpoint_mask);
+      checkpoints[slot]        = history;
+      checkpoint_taken[slot]   = p;
+      checkpoint_outcome[slot] = p;
+      history = ((history << 1) | (p ? 1 : 0)) & history_mask;
+    }
+    return p;
+  }
+
+  protected final long getPCMask() {
+    return (1L << (index_bits + tag_bits)) - 1;
+  }
+
+  public long getPredictedTarget() {
+    return predictedTarget;
+  }
+
+  public void update( long pc, long target, boolean taken ) {
+    long pcd    = (pc >>> 2) & getPCMask();
+    long destcd = (target >>> 2) & target_mask;
+    long data_x = peekLine( pcd );
+    boolean predicted_taken = isPredictedTaken( data_x );
+
+    if (pht != null && checkpoint_head != checkpoint_tail) {
+      // speculative: train with the history the prediction was made with
+      int     slot = (int) (checkpoint_head++ & checkpoint_mask);
+      long    h    = checkpoints[slot];
+      boolean p    = checkpoint_taken[slot];
+      boolean o    = checkpoint_outcome[slot];
+      metrics.resolve( p != taken || (taken && (data_x & target_mask) != destcd) );
+      if (taken && (!predicted_taken || (data_x & target_mask) != destcd)) {
+        writeLine( 3, pcd, destcd );
+      }
+      pht.train( (int) ((pcd ^ h) & history_mask), taken );
+      resolved_history = ((h << 1) | (taken ? 1 : 0)) & history_mask;
+      if (o != taken) {
+        n_repairs++;
+        squash();
+      }
+      return;
+    }
+
+    countResolve( pcd, destcd, taken );
+
+    if (pht != null) {
+      // the table only holds targets, the counters hold the direction
+      if (taken && (!predicted_taken || (data_x & target_mask) != destcd)) {
+        writeLine( 3, pcd, destcd );
+      }
+      resolve( pcd, taken );
+      resolved_history = history;
+      return;
+    }
+
+    if (taken) {
+      if (!predicted_taken || (data_x & target_mask) != destcd) {
+        writeLine( 3, pcd, destcd );
+      }
+    }
+    else if (predicted_taken) {
+      writeLine( 2, pcd, destcd );
+    }
+  }
+
+}
@@ -0,0 +1,49 @@
+#!/bin/sh
+#
+# check_equivalence.sh - checks preditor_gshare.v and gshare.VerilogEquivalence
+# against the reference log ref/golden.log
+#
+#   verilog/check_equivalence.sh [classpath]
+#
+# ref/trace.txt holds the first 2000 branches of a real trace, and
+# ref/golden.log the expected testbench log for it (gshare_tam = 10).
+# The log was NOT written by iverilog: it was derived by hand from
+# preditor_gshare.v and the $fdisplay format of tb_preditor_gshare.v,
+# see its "##" header lines. When iverilog is installed, the testbench
+# is run and its log must match ref/golden.log, which checks both the
+# reference and later changes of preditor_gshare.v. Then the Java model
+# is compared with ref/golden.log. The classpath must hold the compiled
+# gshare classes and Hades; it defaults to $CLASSPATH.
+#
+# Exit code: 0 if the RTL, the reference and the Java model agree,
+# 1 for a difference, 2 if iverilog is missing, so that the RTL was not
+# run (the Java model is still checked against the reference).
+
+dir=`dirname "$0"`
+cp=${1:-$CLASSPATH}
+tmp=${TMPDIR:-/tmp}/check_equivalence.$$
+trap 'rm -f "$tmp".*' 0
+
+rtl=0
+if command -v iverilog >/dev/null 2>&1; then
+  iverilog -o "$tmp.vvp" "$dir/tb_preditor_gshare.v" "$dir/preditor_gshare.v" || exit 1
+  vvp -n "$tmp.vvp" +trace="$dir/ref/trace.txt" +log="$tmp.log" >/dev/null || exit 1
+  grep -v '^##' "$dir/ref/golden.log" > "$tmp.ref"
+  if ! cmp -s "$tmp.log" "$tmp.ref"; then
+    echo "-E- the testbench log differs from ref/golden.log:"
+    diff "$tmp.ref" "$tmp.log" | head -20
+    exit 1
+  fi
+  echo "-I- testbench log matches ref/golden.log"
+  rtl=1
+fi
+
+java -cp "$cp" gshare.VerilogEquivalence -bits 10 \
+     "$dir/ref/trace.txt" "$dir/ref/golden.log" || exit 1
+
+if [ $rtl = 0 ]; then
+  echo "-E- iverilog not found: the RTL was not run, the Java model was only"
+  echo "    checked against the hand-derived ref/golden.log"
+  exit 2
+fi
+exit 0
@@ -1,6 +1,6 @@
 
 module predictor_gshare
-   (
+  #(
     parameter gshare_tam = 10,
     parameter operadores_gshare = 32
     )
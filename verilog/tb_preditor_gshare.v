@@ -0,0 +1,120 @@
+
+// tb_preditor_gshare.v - runs a branch trace through predictor_gshare and
+// writes the golden log for gshare.VerilogEquivalence
+//
+//   iverilog -o tb_gshare tb_preditor_gshare.v preditor_gshare.v
+//   vvp tb_gshare +trace=trace.txt +log=golden.log [+dumpat=n]
+//
+// The trace has one branch per line, "pc target outcome" with pc and
+// target in hex and the outcome 0 or 1 (gshare.TextBranchTrace without
+// comments or branch kinds). Each branch takes two cycles: the prediction
+// (desvia), then the resolve (hit_gshare and decode_gshare with
+// previ = 1, so that desviou_gshare is the outcome). Before the clock
+// edge of the prediction, the log gets the line
+//
+//   n pc index history counter prediction
+//
+// with the branch number n in decimal and the other fields in hex.
+// +dumpat=n writes the whole table as "# estado i counter" lines before
+// the line of branch n.
+//
+// ref/golden.log is the expected log for ref/trace.txt, derived by hand,
+// not by this testbench (see its "##" header); check_equivalence.sh
+// reruns the testbench against it and checks the Java model.
+
+`timescale 1ns/1ps
+
+module tb_preditor_gshare;
+
+   parameter gshare_tam = 10;
+   parameter operadores_gshare = 32;
+
+   reg clk = 0;
+   reg rst = 1;
+   reg desviou_gshare = 0, nao_desviou_gshare = 0;
+   reg desvia = 0, nao_desvia = 0;
+   reg decode_gshare = 0, previ = 0;
+   reg hit_gshare = 0, miss_gshare = 0;
+   reg [operadores_gshare-1:0] brn_pc_i = 0;
+   wire resultado_gshare;
+
+   predictor_gshare #(
+      .gshare_tam(gshare_tam),
+      .operadores_gshare(operadores_gshare)
+   ) dut (
+      .clk(clk),
+      .rst(rst),
+      .resultado_gshare(resultado_gshare),
+      .desviou_gshare(desviou_gshare),
+      .nao_desviou_gshare(nao_desviou_gshare),
+      .desvia(desvia),
+      .nao_desvia(nao_desvia),
+      .decode_gshare(decode_gshare),
+      .previ(previ),
+      .hit_gshare(hit_gshare),
+      .miss_gshare(miss_gshare),
+      .brn_pc_i(brn_pc_i)
+   );
+
+   always #5 clk = ~clk;
+
+   reg [8*1024-1:0] trace_name, log_name, line;
+   reg [63:0]       pc, target;
+   integer          taken, trace, log, n, k, r, dumpat;
+
+   initial begin
+      if (!$value$plusargs("trace=%s", trace_name)) trace_name = "trace.txt";
+      if (!$value$plusargs("log=%s", log_name))     log_name   = "golden.log";
+      if (!$value$plusargs("dumpat=%d", dumpat))    dumpat     = -1;
+
+      trace = $fopen(trace_name, "r");
+      if (trace == 0) begin
+         $display("-E- cannot open %0s", trace_name);
+         $finish;
+      end
+      log = $fopen(log_name, "w");
+
+      // reset: all counters tomado, history 0
+      @(negedge clk);
+      @(negedge clk);
+      rst = 0;
+      n   = 0;
+
+      while (!$feof(trace)) begin
+         r = $fscanf(trace, "%h %h %d\n", pc, target, taken);
+         if (r != 3) begin
+            r = $fgets(line, trace);           // skip a malformed line
+         end else begin
+            // prediction
+            brn_pc_i   = pc[operadores_gshare-1:0];
+            desvia     = 1;
+            #1;
+            if (n == dumpat) begin
+               for (k = 0; k < (1 << gshare_tam); k = k + 1)
+                  $fdisplay(log, "# estado %0d %h", k, dut.estado[k]);
+            end
+            $fdisplay(log, "%0d %h %h %h %h %b", n, pc, dut.estado_index,
+                      dut.hist_nao_desvia_gshare[gshare_tam-1:0],
+                      dut.estado[dut.estado_index], resultado_gshare);
+            @(negedge clk);
+
+            // resolve
+            desvia             = 0;
+            previ              = 1;
+            desviou_gshare     = (taken != 0);
+            nao_desviou_gshare = (taken == 0);
+            hit_gshare         = 1;
+            decode_gshare      = 1;
+            @(negedge clk);
+            hit_gshare         = 0;
+            decode_gshare      = 0;
+            n = n + 1;
+         end
+      end
+
+      $fclose(log);
+      $fclose(trace);
+      $finish;
+   end
+
+endmodule